@@ -0,0 +1,214 @@
+package example;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import filters.Filter;
+import filters.GrayScaleFilter;
+import filters.NullFilter;
+
+/**
+ * @class ImageStreamBenchmark
+ *
+ * @brief A JMH benchmark that measures the throughput of the
+ *        ImageStream variants, i.e., how many times a second each can
+ *        download, filter and store all the images of a run.  The
+ *        images are generated and served by a LocalImageOrigin, so
+ *        the results don't depend on the network or on the live URLs
+ *        in PlatformStrategy.getDefaultUrlList().  Each benchmark
+ *        invocation runs a new ImageStream over @a mCycles iteration
+ *        cycles of @a mUrlsPerCycle URLs, within a ForkJoinPool of @a
+ *        mPoolSize Threads (which the parallel streams run in) and
+ *        with an Executor of the same size.  The decoded image cache
+ *        is disabled so each invocation decodes every image again.
+ *        It needs the classes from the "src" source folder and the
+ *        JMH jars on the classpath.  Running main() adds the GC
+ *        profiler, which reports the allocation rate along with the
+ *        throughput; from the JMH command line use "-prof gc".  Any
+ *        parameter can be overridden with "-p", e.g., "-p
+ *        mFilters=GrayScaleFilter -p mProtocol=FILE".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ImageStreamBenchmark {
+    /**
+     * The ImageStream variant to run.
+     */
+    @Param({ "SEQUENTIAL_STREAM", "PARALLEL_STREAM", "COMPLETABLE_FUTURE" })
+    public String mStream;
+
+    /**
+     * The number of iteration cycles in each run.
+     */
+    @Param({ "2" })
+    public int mCycles;
+
+    /**
+     * The number of URLs downloaded in each iteration cycle.
+     */
+    @Param({ "8" })
+    public int mUrlsPerCycle;
+
+    /**
+     * The comma-separated names of the filters applied to each image.
+     */
+    @Param({ "NullFilter,GrayScaleFilter" })
+    public String mFilters;
+
+    /**
+     * The number of Threads the ImageStream processes images with.
+     */
+    @Param({ "8" })
+    public int mPoolSize;
+
+    /**
+     * The width and height of each image, in pixels.
+     */
+    @Param({ "256", "1024" })
+    public int mImageSize;
+
+    /**
+     * The format of each image.
+     */
+    @Param({ "png", "jpg" })
+    public String mImageFormat;
+
+    /**
+     * How the images are served.
+     */
+    @Param({ "HTTP" })
+    public LocalImageOrigin.Protocol mProtocol;
+
+    /**
+     * The origin the images are downloaded from.
+     */
+    private LocalImageOrigin mOrigin;
+
+    /**
+     * The URLs downloaded by each iteration cycle.
+     */
+    private List<List<URL>> mUrlLists;
+
+    /**
+     * The filters applied to each image.
+     */
+    private Filter[] mFilterArray;
+
+    /**
+     * The pool each ImageStream runs in.
+     */
+    private ForkJoinPool mForkJoinPool;
+
+    /**
+     * Generate the images and configure the singletons the same way
+     * MainConsole does.
+     */
+    @Setup
+    public void setUp() throws Exception {
+        PlatformStrategy.instance
+            (new PlatformStrategyFactory
+             (System.out).makePlatformStrategy());
+
+        // Only log warnings and errors, so the benchmark output isn't
+        // buried under the per-image messages.
+        Options.instance().parseArgs(new String[] {
+                "-n", Integer.toString(mPoolSize),
+                "-k", "0",
+                "-l", "WARN"
+            });
+
+        mOrigin = new LocalImageOrigin(mCycles * mUrlsPerCycle,
+                                       mImageSize,
+                                       mImageFormat,
+                                       mProtocol);
+
+        mUrlLists = new ArrayList<>();
+        List<URL> urls = mOrigin.getUrls();
+        for (int cycle = 0; cycle < mCycles; ++cycle)
+            mUrlLists.add(urls.subList(cycle * mUrlsPerCycle,
+                                       (cycle + 1) * mUrlsPerCycle));
+
+        List<Filter> filters = new ArrayList<>();
+        for (String filterName : mFilters.split(","))
+            filters.add(makeFilter(filterName.trim()));
+        mFilterArray = filters.toArray(new Filter[0]);
+
+        mForkJoinPool = new ForkJoinPool(mPoolSize);
+    }
+
+    /**
+     * Stop the origin and the pool.
+     */
+    @TearDown
+    public void tearDown() {
+        mForkJoinPool.shutdownNow();
+        mOrigin.close();
+    }
+
+    /**
+     * Run a new ImageStream over all the iteration cycles and wait
+     * until all its images are stored.
+     */
+    @Benchmark
+    public StageMetrics runImageStream() throws Exception {
+        ImageStream imageStream =
+            MainConsole.makeImageStream(mFilterArray,
+                                        mUrlLists.iterator(),
+                                        () -> {},
+                                        MainConsole.TestsToRun.valueOf(mStream));
+
+        // ImageStream.run() returns once the completion hook has run.
+        mForkJoinPool.submit(imageStream).get();
+        return imageStream.getMetrics();
+    }
+
+    /**
+     * Returns the filter named @a filterName.
+     */
+    private static Filter makeFilter(String filterName) {
+        switch (filterName) {
+        case "NullFilter":
+            return new NullFilter();
+        case "GrayScaleFilter":
+            return new GrayScaleFilter();
+        default:
+            throw new IllegalArgumentException("unknown filter "
+                                               + filterName);
+        }
+    }
+
+    /**
+     * Run the benchmark with the GC profiler, so the allocation rate
+     * is reported along with the throughput.
+     */
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                   .include(ImageStreamBenchmark.class.getSimpleName())
+                   .addProfiler(GCProfiler.class)
+                   .build()).run();
+    }
+}
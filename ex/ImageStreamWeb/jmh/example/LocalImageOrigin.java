@@ -0,0 +1,181 @@
+package example;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.imageio.ImageIO;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * @class LocalImageOrigin
+ *
+ * @brief Generates images of a given size and format in a temporary
+ *        directory and serves them either from an in-process HTTP
+ *        server on the loopback interface or as "file:" URLs, so the
+ *        benchmarks don't depend on the network or on remote web
+ *        servers.  The images are made from a fixed seed, so every
+ *        run downloads and processes exactly the same bytes.
+ */
+public class LocalImageOrigin implements AutoCloseable {
+    /**
+     * How the generated images are served.
+     */
+    public static enum Protocol {
+        HTTP,
+        FILE
+    }
+
+    /**
+     * The directory the generated images are stored in.
+     */
+    private final File mDirectory;
+
+    /**
+     * The HTTP server, or null if the images are served as "file:"
+     * URLs.
+     */
+    private final HttpServer mServer;
+
+    /**
+     * The Threads that handle the HTTP requests, or null if there's
+     * no HTTP server.
+     */
+    private final ExecutorService mServerExecutor;
+
+    /**
+     * The URLs of the generated images.
+     */
+    private final List<URL> mUrls = new ArrayList<>();
+
+    /**
+     * Constructor generates @a imageCount images of @a size by @a
+     * size pixels in the @a format (e.g., "png" or "jpg") and serves
+     * them via the @a protocol.
+     */
+    public LocalImageOrigin(int imageCount,
+                            int size,
+                            String format,
+                            Protocol protocol) throws IOException {
+        mDirectory = Files.createTempDirectory("ImageStreamOrigin").toFile();
+
+        Random random = new Random(42);
+        for (int i = 0; i < imageCount; ++i)
+            ImageIO.write(makeImage(size, random),
+                          format,
+                          new File(mDirectory, "image" + i + "." + format));
+
+        if (protocol == Protocol.HTTP) {
+            mServer =
+                HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                                                        0),
+                                  0);
+            mServer.createContext("/", this::serve);
+            mServerExecutor = Executors.newCachedThreadPool();
+            mServer.setExecutor(mServerExecutor);
+            mServer.start();
+        } else {
+            mServer = null;
+            mServerExecutor = null;
+        }
+
+        for (int i = 0; i < imageCount; ++i) {
+            String fileName = "image" + i + "." + format;
+            mUrls.add(mServer != null
+                      ? new URL("http",
+                                mServer.getAddress().getHostString(),
+                                mServer.getAddress().getPort(),
+                                "/" + fileName)
+                      : new File(mDirectory, fileName).toURI().toURL());
+        }
+    }
+
+    /**
+     * Returns the URLs of the generated images.
+     */
+    public List<URL> getUrls() {
+        return mUrls;
+    }
+
+    /**
+     * Stop the HTTP server (if any) and delete the generated images.
+     */
+    @Override
+    public void close() {
+        if (mServer != null) {
+            mServer.stop(0);
+            mServerExecutor.shutdownNow();
+        }
+
+        File[] files = mDirectory.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        mDirectory.delete();
+    }
+
+    /**
+     * Send the generated image requested by the @a exchange, or a 404
+     * if there's no such image.
+     */
+    private void serve(HttpExchange exchange) throws IOException {
+        try {
+            File file = new File(mDirectory,
+                                 new File(exchange.getRequestURI().getPath()).getName());
+            if (!file.isFile()) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+
+            byte[] content = Files.readAllBytes(file.toPath());
+            exchange.sendResponseHeaders(200, content.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(content);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Returns an image of @a size by @a size pixels with a gradient
+     * and some random noise, so that it compresses about as well as a
+     * photograph rather than trivially.
+     */
+    private static java.awt.image.BufferedImage makeImage(int size,
+                                                          Random random) {
+        java.awt.image.BufferedImage image =
+            new java.awt.image.BufferedImage(size,
+                                             size,
+                                             java.awt.image.BufferedImage.TYPE_INT_RGB);
+
+        Graphics2D graphics = image.createGraphics();
+        graphics.setPaint(new GradientPaint(0, 0,
+                                            new Color(random.nextInt()),
+                                            size, size,
+                                            new Color(random.nextInt())));
+        graphics.fillRect(0, 0, size, size);
+        graphics.dispose();
+
+        for (int y = 0; y < size; ++y)
+            for (int x = 0; x < size; ++x)
+                if (random.nextInt(4) == 0)
+                    image.setRGB(x, y, image.getRGB(x, y) ^ random.nextInt(0x10));
+
+        return image;
+    }
+}
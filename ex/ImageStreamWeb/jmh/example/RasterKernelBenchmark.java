@@ -0,0 +1,103 @@
+package example;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * @class RasterKernelBenchmark
+ *
+ * @brief A JMH benchmark that compares the scalar and the SIMD (Vector
+ *        API) versions of the grayscale conversion in RasterKernel on
+ *        a single Thread, so the difference is due to vectorization
+ *        alone.  It needs the classes from the "src" and "vector"
+ *        source folders and the JMH jars on the classpath and is run
+ *        with "--add-modules jdk.incubator.vector".
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1,
+      jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class RasterKernelBenchmark {
+    /**
+     * The number of pixels in the image, e.g., 20 megapixels.
+     */
+    @Param({ "1000000", "20000000" })
+    public int mPixelCount;
+
+    /**
+     * Whether the image has an alpha channel, in which case
+     * transparent pixels are skipped.
+     */
+    @Param({ "false", "true" })
+    public boolean mHasAlpha;
+
+    /**
+     * The original random pixels.
+     */
+    private int[] mOriginal;
+
+    /**
+     * The pixels that each invocation converts the original pixels
+     * into.
+     */
+    private int[] mPixels;
+
+    /**
+     * The SIMD version of the conversion.
+     */
+    private final RasterKernel.GrayScaleRun mVector =
+        new RasterKernelVector();
+
+    /**
+     * Make random pixels, about a tenth of which are transparent.
+     */
+    @Setup
+    public void makePixels() {
+        Random random = new Random(42);
+        mOriginal = new int[mPixelCount];
+        for (int i = 0; i < mPixelCount; ++i) {
+            int argb = random.nextInt();
+            mOriginal[i] = random.nextInt(10) == 0
+                ? argb & 0x00FFFFFF
+                : argb;
+        }
+        mPixels = new int[mPixelCount];
+    }
+
+    @Benchmark
+    public int[] scalar() {
+        RasterKernel.SCALAR_GRAY_SCALE_RUN.grayScale(mOriginal,
+                                                     0,
+                                                     mPixels,
+                                                     0,
+                                                     mPixelCount,
+                                                     mHasAlpha);
+        return mPixels;
+    }
+
+    @Benchmark
+    public int[] vector() {
+        mVector.grayScale(mOriginal,
+                          0,
+                          mPixels,
+                          0,
+                          mPixelCount,
+                          mHasAlpha);
+        return mPixels;
+    }
+}
@@ -0,0 +1,291 @@
+package example;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * @class AsyncLog
+ *
+ * @brief A logger that doesn't make the logging Threads wait for the
+ *        output (e.g., on the monitor of System.out).  Messages are
+ *        put in a bounded lock-free ring buffer that many Threads add
+ *        to and a single background Thread drains, writing the
+ *        messages to their sinks in batches.  Messages below the
+ *        configured Level are ignored, and messages below WARN can be
+ *        sampled so only one in every N from the same source is
+ *        logged.  If the ring buffer is full a message is dropped
+ *        rather than blocking the caller, and the number of dropped
+ *        messages is logged once there's room again.  This class is a
+ *        singleton, so all the PlatformStrategy objects share the
+ *        background Thread.
+ */
+public class AsyncLog {
+    /**
+     * The severity of a message.
+     */
+    public static enum Level {
+        DEBUG,
+        INFO,
+        WARN,
+        ERROR,
+        OFF    // Only used as a threshold, to log nothing.
+    }
+
+    /**
+     * The singleton @a AsyncLog instance.
+     */
+    private static AsyncLog sUniqueInstance = null;
+
+    /**
+     * The number of messages the ring buffer holds, which must be a
+     * power of two.
+     */
+    private static final int CAPACITY = 16 * 1024;
+
+    /**
+     * The drain Thread writes a batch once it has about this many
+     * characters, even if more messages are ready.
+     */
+    private static final int MAX_BATCH_CHARS = 64 * 1024;
+
+    /**
+     * A message waiting to be written.
+     */
+    private static class Entry {
+        final Consumer<String> mSink;
+        final String mText;
+
+        Entry(Consumer<String> sink,
+              String text) {
+            mSink = sink;
+            mText = text;
+        }
+    }
+
+    /**
+     * The ring buffer.  A slot is null until the producer that claimed
+     * it has put its Entry there.
+     */
+    private final AtomicReferenceArray<Entry> mSlots =
+        new AtomicReferenceArray<>(CAPACITY);
+
+    /**
+     * The position of the next slot to be claimed by a producer.
+     */
+    private final AtomicLong mTail = new AtomicLong(0);
+
+    /**
+     * The position of the next slot to be drained, which is only
+     * changed by the drain Thread.
+     */
+    private volatile long mHead = 0;
+
+    /**
+     * The position of the next slot whose message hasn't been
+     * written yet, which is only changed by the drain Thread.
+     */
+    private volatile long mWritten = 0;
+
+    /**
+     * The number of messages dropped because the ring buffer was full.
+     */
+    private final AtomicLong mDropped = new AtomicLong(0);
+
+    /**
+     * The number of messages below WARN seen from each source, which
+     * is used for sampling.
+     */
+    private final Map<String, AtomicLong> mSampleCounts =
+        new ConcurrentHashMap<>();
+
+    /**
+     * Messages below this Level are ignored.
+     */
+    private final Level mThreshold;
+
+    /**
+     * Only one in every mSampleRate messages below WARN from the same
+     * source is logged.
+     */
+    private final int mSampleRate;
+
+    /**
+     * The Thread that drains the ring buffer.
+     */
+    private final Thread mDrainThread;
+
+    /**
+     * True while the drain Thread is parked because the ring buffer
+     * is empty.
+     */
+    private volatile boolean mDrainThreadParked = false;
+
+    /**
+     * Method to return the one and only singleton instance.
+     */
+    public static synchronized AsyncLog instance() {
+        if (sUniqueInstance == null)
+            sUniqueInstance =
+                new AsyncLog(Options.instance().getLogLevel(),
+                             Options.instance().getLogSampleRate());
+
+        return sUniqueInstance;
+    }
+
+    /**
+     * Constructor starts the drain Thread, which logs messages at
+     * the @a threshold Level or above, sampling one in every @a
+     * sampleRate messages below WARN.
+     */
+    private AsyncLog(Level threshold,
+                     int sampleRate) {
+        mThreshold = threshold;
+        mSampleRate = Math.max(1, sampleRate);
+
+        mDrainThread = new Thread(this::drain, "AsyncLog");
+        // Don't keep the JVM alive just for this Thread.
+        mDrainThread.setDaemon(true);
+        mDrainThread.start();
+
+        // Write the messages that are still in the ring buffer when
+        // the JVM exits.
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flush));
+    }
+
+    /**
+     * Log the message @a text from the @a source (e.g., the name of
+     * the Java file) at the @a level to the @a sink, without waiting
+     * for it to be written.
+     */
+    public void log(Level level,
+                    Consumer<String> sink,
+                    String source,
+                    String text) {
+        if (level.compareTo(mThreshold) < 0 || level == Level.OFF)
+            return;
+
+        if (mSampleRate > 1
+            && level.compareTo(Level.WARN) < 0
+            && sampleCount(source).getAndIncrement() % mSampleRate != 0)
+            return;
+
+        if (!offer(new Entry(sink, source + " " + text)))
+            mDropped.incrementAndGet();
+        else if (mDrainThreadParked)
+            LockSupport.unpark(mDrainThread);
+    }
+
+    /**
+     * Wait until all the messages logged so far have been written.
+     */
+    public void flush() {
+        long tail = mTail.get();
+
+        while (mWritten < tail && mDrainThread.isAlive()) {
+            LockSupport.unpark(mDrainThread);
+            LockSupport.parkNanos(100_000);
+        }
+    }
+
+    /**
+     * Returns the number of messages that were dropped because the
+     * ring buffer was full.
+     */
+    public long getDropped() {
+        return mDropped.get();
+    }
+
+    /**
+     * Put the @a entry in the ring buffer.  Returns false if it's full.
+     */
+    private boolean offer(Entry entry) {
+        for (;;) {
+            long tail = mTail.get();
+
+            if (tail - mHead >= CAPACITY)
+                return false;
+
+            // Claim the slot and then publish the entry in it.
+            if (mTail.compareAndSet(tail, tail + 1)) {
+                mSlots.lazySet(slot(tail), entry);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * The loop run by the drain Thread, which writes each run of
+     * consecutive messages for the same sink in one batch.
+     */
+    private void drain() {
+        StringBuilder batch = new StringBuilder();
+        long reportedDropped = 0;
+
+        for (;;) {
+            long head = mHead;
+            Entry entry = mSlots.get(slot(head));
+
+            if (entry == null) {
+                // The ring buffer is empty, or the next entry's
+                // producer hasn't published it yet.
+                mDrainThreadParked = true;
+                if (mSlots.get(slot(mHead)) == null)
+                    LockSupport.parkNanos(this, 10_000_000);
+                mDrainThreadParked = false;
+                continue;
+            }
+
+            Consumer<String> sink = entry.mSink;
+
+            // Take the entries for the same sink that are ready.
+            do {
+                batch.append(entry.mText).append(System.lineSeparator());
+                mSlots.lazySet(slot(head), null);
+                mHead = ++head;
+                entry = mSlots.get(slot(head));
+            } while (entry != null
+                     && entry.mSink == sink
+                     && batch.length() < MAX_BATCH_CHARS);
+
+            long dropped = mDropped.get();
+            if (dropped != reportedDropped) {
+                batch.append("AsyncLog dropped ")
+                    .append(dropped - reportedDropped)
+                    .append(" messages")
+                    .append(System.lineSeparator());
+                reportedDropped = dropped;
+            }
+
+            try {
+                sink.accept(batch.toString());
+            } catch (RuntimeException e) {
+                // Don't let one bad sink stop the logging.
+                e.printStackTrace();
+            }
+            batch.setLength(0);
+            mWritten = head;
+        }
+    }
+
+    /**
+     * Returns the counter used to sample the messages from @a source.
+     */
+    private AtomicLong sampleCount(String source) {
+        AtomicLong count = mSampleCounts.get(source);
+        return count != null
+            ? count
+            : mSampleCounts.computeIfAbsent(source,
+                                            key -> new AtomicLong(0));
+    }
+
+    /**
+     * Returns the index of the slot for @a position.
+     */
+    private static int slot(long position) {
+        return (int) position & (CAPACITY - 1);
+    }
+}
@@ -1,9 +1,32 @@
 package example;
 
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.imageio.IIOException;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.event.IIOReadUpdateListener;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataFormatImpl;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 
 /**
  * @class BufferedImage
@@ -18,17 +41,77 @@ class BufferedImage implements Image {
     public java.awt.image.BufferedImage mBufferedImage;
 
     /**
-     * Constructor that converts an @a imageData of raw bytes into a
-     * Java @a BufferedImage.
+     * True if the Image is shared and must not be changed.
      */
-    public BufferedImage(byte[] imageData) {
-        try {
-            mBufferedImage = ImageIO.read(new ByteArrayInputStream(imageData));
+    private volatile boolean mShared;
+
+    /**
+     * The number of references to the Image.
+     */
+    private final AtomicInteger mReferences = new AtomicInteger(1);
+
+    /**
+     * Receives the strips of an image decoded by decodeStrips().
+     */
+    @FunctionalInterface
+    interface StripConsumer {
+        /**
+         * Accept the @a strip whose top row is row @a y of the image.
+         * The strip's pixels are overwritten by the next strip once
+         * this method returns, so they mustn't be kept.
+         */
+        void accept(java.awt.image.BufferedImage strip,
+                    int y) throws IOException, InterruptedException;
+    }
+
+    /**
+     * Constructor that converts an @a imageData of raw bytes in the
+     * format @a formatName (e.g., "png" or "jpg", or null if it's not
+     * known) into a Java @a BufferedImage.
+     */
+    public BufferedImage(byte[] imageData,
+                         String formatName) {
+        try (ImageInputStream istream =
+             ImageIO.createImageInputStream(new ByteArrayInputStream(imageData))) {
+            mBufferedImage = decode(istream, formatName, null);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Constructor that converts just the @a region of the image in
+     * the @a imageData of raw bytes in the format @a formatName (or
+     * null if it's not known) into a Java @a BufferedImage, e.g., one
+     * strip of the tiles of an image that's too big to decode whole
+     * (see TileSet).  The region is decoded at full size.
+     */
+    public BufferedImage(byte[] imageData,
+                         String formatName,
+                         Rectangle region) {
+        try (ImageInputStream istream =
+             new ByteArrayImageInputStream(imageData)) {
+            mBufferedImage = decode(istream, formatName, region);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Constructor that decodes a Java @a BufferedImage straight from
+     * the @a imageStream (e.g., a network stream) in the format @a
+     * formatName (or null if it's not known) without first reading
+     * all of it into a byte array.  Only the bytes the ImageReader
+     * hasn't discarded yet are buffered in memory.
+     */
+    public BufferedImage(InputStream imageStream,
+                         String formatName) throws IOException {
+        try (ImageInputStream istream =
+             new MemoryCacheImageInputStream(imageStream)) {
+            mBufferedImage = decode(istream, formatName, null);
+        }
+    }
+
     /**
      * Constructor that stores the @a bufferedInmage parameter into
      * the data member.
@@ -36,4 +119,648 @@ class BufferedImage implements Image {
     public BufferedImage (Object bufferedImage) {
     	mBufferedImage = (java.awt.image.BufferedImage) bufferedImage;
     }
+
+    /**
+     * Returns the number of bytes needed to hold the pixels of the
+     * Image.
+     */
+    @Override
+    public long getSizeInBytes() {
+        if (mBufferedImage == null)
+            return 0;
+
+        int bytesPerPixel =
+            (mBufferedImage.getColorModel().getPixelSize() + 7) / 8;
+        return (long) mBufferedImage.getWidth()
+            * mBufferedImage.getHeight()
+            * bytesPerPixel;
+    }
+
+    /**
+     * Marks the Image as shared, so its pixels are never changed
+     * again.
+     */
+    @Override
+    public void share() {
+        mShared = true;
+    }
+
+    /**
+     * Returns true if the Image is shared.
+     */
+    @Override
+    public boolean isShared() {
+        return mShared;
+    }
+
+    /**
+     * Adds a reference to the Image.
+     */
+    @Override
+    public void retain() {
+        mReferences.incrementAndGet();
+    }
+
+    /**
+     * Releases a reference to the Image and recycles its pixel buffer
+     * once the last reference is released.
+     */
+    @Override
+    public void release() {
+        if (mReferences.decrementAndGet() == 0
+            && mBufferedImage != null)
+            PixelBufferPool.instance().recycle(mBufferedImage.getRaster()
+                                               .getDataBuffer());
+    }
+
+    /**
+     * Returns the width and height of the image in the @a imageData
+     * of raw bytes in the format @a formatName (or null if it's not
+     * known), which are read from its header without decoding its
+     * pixels, or null if no ImageReader recognizes the data.
+     */
+    static Dimension getSize(byte[] imageData,
+                             String formatName) {
+        try (ImageInputStream istream =
+             new ByteArrayImageInputStream(imageData)) {
+            ImageReader reader = ImageReaderPool.acquire(formatName, istream);
+            if (reader == null)
+                return null;
+
+            try {
+                reader.setInput(istream, true, true);
+                return new Dimension(reader.getWidth(0),
+                                     reader.getHeight(0));
+            } finally {
+                ImageReaderPool.release(formatName, reader);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Decodes the image in the @a istream, which is in the format @a
+     * formatName if that's not null, the same way ImageIO.read()
+     * does, but into a pixel buffer borrowed from the PixelBufferPool
+     * and with the calling Thread's ImageReader for the format.  Only
+     * the @a region of the image is decoded, at full size, unless
+     * it's null.  Returns null if no ImageReader recognizes the data.
+     */
+    private static java.awt.image.BufferedImage decode(ImageInputStream istream,
+                                                       String formatName,
+                                                       Rectangle region)
+        throws IOException {
+        ImageReader reader = ImageReaderPool.acquire(formatName, istream);
+        if (reader == null)
+            return null;
+
+        try {
+            // Only the metadata of a PNG region is read, which tells
+            // whether the image is interlaced.
+            boolean pngRegion = region != null
+                && reader.getFormatName().equalsIgnoreCase("png");
+            reader.setInput(istream, true, !pngRegion);
+            ImageReadParam param = reader.getDefaultReadParam();
+
+            int width = reader.getWidth(0);
+            int height = reader.getHeight(0);
+            if (region != null) {
+                // Only decode the rows and columns of the region.
+                param.setSourceRegion(region);
+                width = region.width;
+                height = region.height;
+
+                // The PNG reader decodes (and discards) the rows below
+                // the region too unless it's stopped, whereas the JPEG
+                // reader stops by itself.  An interlaced PNG's last row
+                // is updated by an early pass, so it can't be stopped.
+                if (pngRegion
+                    && progressiveScans(reader.getImageMetadata(0)) == 1)
+                    reader.addIIOReadUpdateListener(new RegionEndListener(height));
+            } else {
+                // Only decode every so many rows and columns if the
+                // image is much bigger than the target size, so the
+                // time and memory the decoding takes scale with that
+                // size.
+                int sampling = sourceSampling(width, height);
+                if (sampling > 1) {
+                    param.setSourceSubsampling(sampling, sampling, 0, 0);
+                    width = (width + sampling - 1) / sampling;
+                    height = (height + sampling - 1) / sampling;
+                }
+            }
+
+            // Use the same image type ImageIO.read() would, i.e.,
+            // the reader's first choice, unless packed int pixels
+            // were asked for and the reader can decode to them.
+            ImageTypeSpecifier imageType = pickImageType(reader);
+            if (imageType != null)
+                param.setDestination
+                    (PixelBufferPool.instance().borrowImage
+                     (imageType.getColorModel(),
+                      imageType.getSampleModel(width, height),
+                      true));
+
+            java.awt.image.BufferedImage image = reader.read(0, param);
+            if (!Options.instance().intRastersEnabled())
+                return image;
+
+            // Convert any other layout (e.g., a palette or gray) once
+            // here, rather than in each filter.
+            java.awt.image.BufferedImage packedImage =
+                RasterKernel.toPacked(image);
+            if (packedImage != image)
+                PixelBufferPool.instance().recycle(image.getRaster()
+                                                   .getDataBuffer());
+            return packedImage;
+        } finally {
+            ImageReaderPool.release(formatName, reader);
+        }
+    }
+
+    /**
+     * Decodes the image in the @a imageData of raw bytes in the format
+     * @a formatName (or null if it's not known) from top to bottom in
+     * one pass and hands it to the @a consumer one strip of @a rows
+     * rows at a time (the last strip may be shorter), as soon as each
+     * strip is decoded.  The reader decodes into a destination that's
+     * the size of the image but whose rows all share the pixels of a
+     * single row (its scanline stride is 0), and each row is copied
+     * into the strip as it's decoded, so the pixels held at once are
+     * one strip rather than the whole image.  Returns false, without
+     * handing the consumer anything, if the image can't be decoded
+     * this way, i.e., if its rows aren't decoded in order (e.g., an
+     * interlaced PNG or a progressive JPEG) or its pixels take less
+     * than a byte (e.g., a 1-bit PNG).
+     */
+    static boolean decodeStrips(byte[] imageData,
+                                String formatName,
+                                int rows,
+                                StripConsumer consumer) throws IOException {
+        try (ImageInputStream istream =
+             new ByteArrayImageInputStream(imageData)) {
+            ImageReader reader = ImageReaderPool.acquire(formatName, istream);
+            if (reader == null)
+                throw new IIOException("no ImageReader for the image");
+
+            try {
+                // The metadata tells whether the rows are decoded in
+                // several passes.
+                reader.setInput(istream, true, false);
+                if (progressiveScans(reader.getImageMetadata(0)) > 1)
+                    return false;
+
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                ImageTypeSpecifier imageType = pickImageType(reader);
+                if (imageType == null)
+                    return false;
+
+                SampleModel rowModel =
+                    rowSampleModel(imageType.getSampleModel(width, height));
+                if (rowModel == null)
+                    return false;
+
+                ColorModel colorModel = imageType.getColorModel();
+                java.awt.image.BufferedImage strip =
+                    PixelBufferPool.instance().borrowImage
+                    (colorModel,
+                     imageType.getSampleModel(width, Math.min(rows, height)),
+                     false);
+                if (strip == null)
+                    strip = imageType.createBufferedImage(width,
+                                                          Math.min(rows, height));
+
+                StripListener listener =
+                    new StripListener(strip, height, consumer);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setDestination
+                    (new java.awt.image.BufferedImage
+                     (colorModel,
+                      Raster.createWritableRaster(rowModel, null),
+                      colorModel.isAlphaPremultiplied(),
+                      null));
+                reader.addIIOReadUpdateListener(listener);
+
+                try {
+                    reader.read(0, param);
+                } finally {
+                    PixelBufferPool.instance().recycle(strip.getRaster()
+                                                       .getDataBuffer());
+                }
+                return listener.finish();
+            } finally {
+                ImageReaderPool.release(formatName, reader);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of passes in which the image described by
+     * the @a metadata is decoded (e.g., 7 for an interlaced PNG), or
+     * 1 if the metadata doesn't say.
+     */
+    private static int progressiveScans(IIOMetadata metadata) {
+        if (metadata == null || !metadata.isStandardMetadataFormatSupported())
+            return 1;
+
+        for (Node node = metadata
+                 .getAsTree(IIOMetadataFormatImpl.standardMetadataFormatName)
+                 .getFirstChild();
+             node != null;
+             node = node.getNextSibling())
+            if (node.getNodeName().equals("Compression"))
+                for (Node child = node.getFirstChild();
+                     child != null;
+                     child = child.getNextSibling())
+                    if (child.getNodeName().equals("NumProgressiveScans"))
+                        return Integer.parseInt(((Element) child).getAttribute("value"));
+        return 1;
+    }
+
+    /**
+     * Returns a copy of the @a sampleModel whose scanline stride is
+     * 0, so all its rows share the samples of one row, or null if its
+     * layout can't share them (e.g., pixels packed several to a byte).
+     */
+    private static SampleModel rowSampleModel(SampleModel sampleModel) {
+        if (sampleModel instanceof ComponentSampleModel) {
+            // A PixelInterleavedSampleModel doesn't allow a stride of
+            // 0, but it lays out the samples the same way.
+            ComponentSampleModel componentModel =
+                (ComponentSampleModel) sampleModel;
+            return new ComponentSampleModel(componentModel.getDataType(),
+                                            componentModel.getWidth(),
+                                            componentModel.getHeight(),
+                                            componentModel.getPixelStride(),
+                                            0,
+                                            componentModel.getBankIndices(),
+                                            componentModel.getBandOffsets());
+        } else if (sampleModel instanceof SinglePixelPackedSampleModel) {
+            SinglePixelPackedSampleModel packedModel =
+                (SinglePixelPackedSampleModel) sampleModel;
+            return new SinglePixelPackedSampleModel(packedModel.getDataType(),
+                                                    packedModel.getWidth(),
+                                                    packedModel.getHeight(),
+                                                    0,
+                                                    packedModel.getBitMasks());
+        } else
+            return null;
+    }
+
+    /**
+     * Returns the type of image the @a reader decodes to, i.e., its
+     * first choice, or else a TYPE_INT_RGB or TYPE_INT_ARGB type it
+     * offers if Options asks for packed int pixels.  Returns null if
+     * the reader offers no types.
+     */
+    private static ImageTypeSpecifier pickImageType(ImageReader reader)
+        throws IOException {
+        Iterator<ImageTypeSpecifier> imageTypes = reader.getImageTypes(0);
+        if (!imageTypes.hasNext())
+            return null;
+
+        ImageTypeSpecifier firstChoice = imageTypes.next();
+        if (!Options.instance().intRastersEnabled())
+            return firstChoice;
+
+        boolean hasAlpha = firstChoice.getColorModel().hasAlpha();
+        int packedType = hasAlpha
+            ? java.awt.image.BufferedImage.TYPE_INT_ARGB
+            : java.awt.image.BufferedImage.TYPE_INT_RGB;
+
+        for (ImageTypeSpecifier imageType = firstChoice;;
+             imageType = imageTypes.next()) {
+            if (imageType.getBufferedImageType() == packedType)
+                return imageType;
+            if (!imageTypes.hasNext())
+                return firstChoice;
+        }
+    }
+
+    /**
+     * Returns the largest sampling period at which an image of @a
+     * width by @a height pixels is still decoded to at least the
+     * target size chosen by Options, like the inSampleSize of an
+     * Android Bitmap, or 1 if there's no target size.
+     */
+    private static int sourceSampling(int width,
+                                      int height) {
+        int targetWidth = Options.instance().getTargetWidth();
+        int targetHeight = Options.instance().getTargetHeight();
+
+        int sampling = Integer.MAX_VALUE;
+        if (targetWidth > 0)
+            sampling = width / targetWidth;
+        if (targetHeight > 0)
+            sampling = Math.min(sampling, height / targetHeight);
+
+        return sampling == Integer.MAX_VALUE
+            ? 1
+            : Math.max(1, sampling);
+    }
+
+    /**
+     * @class RegionEndListener
+     *
+     * @brief Stops an ImageReader as soon as it has decoded the last
+     *        row of the source region of an image that isn't
+     *        interlaced, so it doesn't decode the rest of the image.
+     *        The ImageReader's reset() removes the listener.
+     */
+    private static class RegionEndListener implements IIOReadUpdateListener {
+        /**
+         * The last row of the decoded image.
+         */
+        private final int mLastRow;
+
+        /**
+         * Constructor initializes the data member for a decoded image
+         * that's @a height rows high.
+         */
+        RegionEndListener(int height) {
+            mLastRow = height - 1;
+        }
+
+        /**
+         * Stop the @a reader once it has updated the last row.
+         */
+        @Override
+        public void imageUpdate(ImageReader reader,
+                                java.awt.image.BufferedImage image,
+                                int minX,
+                                int minY,
+                                int width,
+                                int height,
+                                int periodX,
+                                int periodY,
+                                int[] bands) {
+            if (minY + height - 1 >= mLastRow)
+                reader.abort();
+        }
+
+        @Override
+        public void passStarted(ImageReader reader,
+                                java.awt.image.BufferedImage image,
+                                int pass,
+                                int minPass,
+                                int maxPass,
+                                int minX,
+                                int minY,
+                                int periodX,
+                                int periodY,
+                                int[] bands) {
+        }
+
+        @Override
+        public void passComplete(ImageReader reader,
+                                 java.awt.image.BufferedImage image) {
+        }
+
+        @Override
+        public void thumbnailPassStarted(ImageReader reader,
+                                         java.awt.image.BufferedImage thumbnail,
+                                         int pass,
+                                         int minPass,
+                                         int maxPass,
+                                         int minX,
+                                         int minY,
+                                         int periodX,
+                                         int periodY,
+                                         int[] bands) {
+        }
+
+        @Override
+        public void thumbnailUpdate(ImageReader reader,
+                                    java.awt.image.BufferedImage thumbnail,
+                                    int minX,
+                                    int minY,
+                                    int width,
+                                    int height,
+                                    int periodX,
+                                    int periodY,
+                                    int[] bands) {
+        }
+
+        @Override
+        public void thumbnailPassComplete(ImageReader reader,
+                                          java.awt.image.BufferedImage thumbnail) {
+        }
+    }
+
+    /**
+     * @class StripListener
+     *
+     * @brief Copies each row an ImageReader decodes into a strip and
+     *        hands the strip to a StripConsumer once it's full, for
+     *        decodeStrips().  The reader is stopped if it decodes the
+     *        rows out of order or the consumer fails.  The
+     *        ImageReader's reset() removes the listener.
+     */
+    private static class StripListener implements IIOReadUpdateListener {
+        /**
+         * The strip the rows are copied into.
+         */
+        private final java.awt.image.BufferedImage mStrip;
+
+        /**
+         * The number of rows of the image.
+         */
+        private final int mHeight;
+
+        /**
+         * Receives each strip once it's full.
+         */
+        private final StripConsumer mConsumer;
+
+        /**
+         * The row that's expected to be decoded next.
+         */
+        private int mNextRow = 0;
+
+        /**
+         * The samples of the row being copied, which are reused for
+         * each row.
+         */
+        private Object mRow;
+
+        /**
+         * True if the rows were decoded out of order.
+         */
+        private boolean mOutOfOrder;
+
+        /**
+         * True if the consumer was interrupted.
+         */
+        private boolean mInterrupted;
+
+        /**
+         * What the consumer failed with, if it did.
+         */
+        private IOException mFailure;
+
+        /**
+         * Constructor copies the rows of an image that's @a height
+         * rows high into the @a strip and hands it to the @a consumer
+         * whenever it's full.
+         */
+        StripListener(java.awt.image.BufferedImage strip,
+                      int height,
+                      StripConsumer consumer) {
+            mStrip = strip;
+            mHeight = height;
+            mConsumer = consumer;
+        }
+
+        /**
+         * Returns true once all the rows were decoded and handed to
+         * the consumer, false if the rows were decoded out of order
+         * before any strip was handed over, and else throws.
+         */
+        boolean finish() throws IOException {
+            if (mInterrupted) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (mFailure != null)
+                throw mFailure;
+            if (mOutOfOrder && mNextRow >= mStrip.getHeight())
+                throw new IIOException("rows decoded out of order");
+            if (!mOutOfOrder && mNextRow < mHeight)
+                throw new IIOException("image ended after "
+                                       + mNextRow
+                                       + " rows");
+            return !mOutOfOrder;
+        }
+
+        /**
+         * Copy the row the @a reader just decoded into the @a image
+         * into the strip, and hand the strip to the consumer if it's
+         * full.
+         */
+        @Override
+        public void imageUpdate(ImageReader reader,
+                                java.awt.image.BufferedImage image,
+                                int minX,
+                                int minY,
+                                int width,
+                                int height,
+                                int periodX,
+                                int periodY,
+                                int[] bands) {
+            if (minX != 0
+                || width != mStrip.getWidth()
+                || height != 1
+                || periodX != 1
+                || periodY != 1
+                || minY != mNextRow) {
+                mOutOfOrder = true;
+                reader.abort();
+                return;
+            }
+
+            int stripRows = mStrip.getHeight();
+            int stripY = minY - minY % stripRows;
+            mRow = image.getRaster().getDataElements(0, minY, width, 1, mRow);
+            mStrip.getRaster().setDataElements(0, minY - stripY, width, 1, mRow);
+            ++mNextRow;
+
+            if (mNextRow - stripY == stripRows || mNextRow == mHeight)
+                try {
+                    handOver(stripY, mNextRow - stripY);
+                } catch (IOException e) {
+                    mFailure = e;
+                    reader.abort();
+                } catch (InterruptedException e) {
+                    mInterrupted = true;
+                    reader.abort();
+                }
+        }
+
+        /**
+         * Hand the first @a rows rows of the strip, whose top row is
+         * row @a y of the image, to the consumer.  If Options asks for
+         * packed int pixels, they're converted here, like decode()
+         * does.
+         */
+        private void handOver(int y,
+                              int rows)
+            throws IOException, InterruptedException {
+            java.awt.image.BufferedImage strip = rows == mStrip.getHeight()
+                ? mStrip
+                : mStrip.getSubimage(0, 0, mStrip.getWidth(), rows);
+            if (!Options.instance().intRastersEnabled()) {
+                mConsumer.accept(strip, y);
+                return;
+            }
+
+            java.awt.image.BufferedImage packedStrip =
+                RasterKernel.toPacked(strip);
+            try {
+                mConsumer.accept(packedStrip, y);
+            } finally {
+                if (packedStrip != strip)
+                    PixelBufferPool.instance().recycle(packedStrip.getRaster()
+                                                       .getDataBuffer());
+            }
+        }
+
+        /**
+         * Stop the @a reader if a pass after the first one starts,
+         * since the rows of the first were handed over already.
+         */
+        @Override
+        public void passStarted(ImageReader reader,
+                                java.awt.image.BufferedImage image,
+                                int pass,
+                                int minPass,
+                                int maxPass,
+                                int minX,
+                                int minY,
+                                int periodX,
+                                int periodY,
+                                int[] bands) {
+            if (pass > minPass) {
+                mOutOfOrder = true;
+                reader.abort();
+            }
+        }
+
+        @Override
+        public void passComplete(ImageReader reader,
+                                 java.awt.image.BufferedImage image) {
+        }
+
+        @Override
+        public void thumbnailPassStarted(ImageReader reader,
+                                         java.awt.image.BufferedImage thumbnail,
+                                         int pass,
+                                         int minPass,
+                                         int maxPass,
+                                         int minX,
+                                         int minY,
+                                         int periodX,
+                                         int periodY,
+                                         int[] bands) {
+        }
+
+        @Override
+        public void thumbnailUpdate(ImageReader reader,
+                                    java.awt.image.BufferedImage thumbnail,
+                                    int minX,
+                                    int minY,
+                                    int width,
+                                    int height,
+                                    int periodX,
+                                    int periodY,
+                                    int[] bands) {
+        }
+
+        @Override
+        public void thumbnailPassComplete(ImageReader reader,
+                                          java.awt.image.BufferedImage thumbnail) {
+        }
+    }
 }
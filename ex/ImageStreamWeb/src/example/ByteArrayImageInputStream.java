@@ -0,0 +1,65 @@
+package example;
+
+import java.io.IOException;
+
+import javax.imageio.stream.ImageInputStreamImpl;
+
+/**
+ * @class ByteArrayImageInputStream
+ *
+ * @brief An ImageInputStream that reads straight from a byte array.
+ *        ImageIO.createImageInputStream() wraps a ByteArrayInputStream
+ *        in a stream that copies every byte read into a cache (a
+ *        temporary file by default), which is wasted on data that's
+ *        in memory already, and which is repeated each time a region
+ *        of a big image is decoded from the same bytes (see TileSet).
+ */
+final class ByteArrayImageInputStream extends ImageInputStreamImpl {
+    /**
+     * The bytes that are read.
+     */
+    private final byte[] mData;
+
+    /**
+     * Constructor reads from the @a data, which mustn't be changed
+     * while it's read.
+     */
+    ByteArrayImageInputStream(byte[] data) {
+        mData = data;
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkClosed();
+        bitOffset = 0;
+
+        return streamPos < mData.length
+            ? mData[(int) streamPos++] & 0xFF
+            : -1;
+    }
+
+    @Override
+    public int read(byte[] buffer,
+                    int offset,
+                    int length) throws IOException {
+        checkClosed();
+        if (offset < 0 || length < 0 || length > buffer.length - offset)
+            throw new IndexOutOfBoundsException();
+        bitOffset = 0;
+
+        if (length == 0)
+            return 0;
+        if (streamPos >= mData.length)
+            return -1;
+
+        int bytes = (int) Math.min(length, mData.length - streamPos);
+        System.arraycopy(mData, (int) streamPos, buffer, offset, bytes);
+        streamPos += bytes;
+        return bytes;
+    }
+
+    @Override
+    public long length() {
+        return mData.length;
+    }
+}
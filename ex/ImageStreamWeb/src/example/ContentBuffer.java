@@ -0,0 +1,45 @@
+package example;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * @class ContentBuffer
+ *
+ * @brief A ByteArrayOutputStream that collects the contents of a
+ *        download and hands them out without copying them again when
+ *        it was sized for them up front, e.g., from the Content-Length
+ *        of an HTTP response.  toByteArray() copies the buffer each
+ *        time it's called, so a download that's both cached and kept
+ *        by its ImageEntity would otherwise be copied twice.
+ */
+class ContentBuffer extends ByteArrayOutputStream {
+    /**
+     * The contents returned by getContent(), which are kept so every
+     * call returns the same array.
+     */
+    private byte[] mContent;
+
+    /**
+     * Make room for @a length bytes of contents if they'll fit in an
+     * array and nothing has been written yet, so writing all of them
+     * never grows the buffer.
+     */
+    void expect(long length) {
+        if (count == 0 && length > buf.length && length <= Integer.MAX_VALUE - 8)
+            buf = new byte[(int) length];
+    }
+
+    /**
+     * Returns the contents written so far.  The buffer itself is
+     * returned if it's exactly full, in which case nothing more may be
+     * written, so it's only copied if it was sized wrongly.
+     */
+    synchronized byte[] getContent() {
+        if (mContent == null || mContent.length != count)
+            mContent = count == buf.length
+                ? buf
+                : Arrays.copyOf(buf, count);
+        return mContent;
+    }
+}
@@ -0,0 +1,201 @@
+package example;
+
+import java.net.URL;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * @class DecodedImageCache
+ *
+ * @brief Caches decoded Images so that an image that was decoded
+ *        moments earlier (e.g., by another cycle or another test) is
+ *        shared rather than decoded again.  Each entry is weighted by
+ *        the number of bytes its pixels occupy and the least recently
+ *        used entries are evicted when the total weight exceeds the
+ *        configured heap budget.  The Images handed out are marked as
+ *        shared, so filters don't modify them.  This class is a
+ *        singleton.
+ */
+public class DecodedImageCache {
+    /**
+     * The singleton @a DecodedImageCache instance.
+     */
+    private static DecodedImageCache sUniqueInstance = null;
+
+    /**
+     * The cached Images, which are kept in least-recently-used order.
+     */
+    private final LinkedHashMap<String, Image> mImages =
+        new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * The maximum total weight of the cached Images, or 0 if caching
+     * is disabled.
+     */
+    private final long mMaxWeight;
+
+    /**
+     * The total weight of the cached Images.
+     */
+    private long mWeight = 0;
+
+    /**
+     * The number of Images found in the cache.
+     */
+    private final AtomicLong mHits = new AtomicLong(0);
+
+    /**
+     * The number of Images that had to be decoded.
+     */
+    private final AtomicLong mMisses = new AtomicLong(0);
+
+    /**
+     * The number of Images evicted from the cache.
+     */
+    private final AtomicLong mEvictions = new AtomicLong(0);
+
+    /**
+     * Method to return the one and only singleton instance.
+     */
+    public static synchronized DecodedImageCache instance() {
+        if (sUniqueInstance == null)
+            sUniqueInstance =
+                new DecodedImageCache(Options.instance().getDecodedCacheSize());
+
+        return sUniqueInstance;
+    }
+
+    /**
+     * Constructor initializes the data member so the cache holds up
+     * to @a maxWeight bytes of pixels.
+     */
+    private DecodedImageCache(long maxWeight) {
+        mMaxWeight = maxWeight;
+    }
+
+    /**
+     * Returns the Image decoded from the @a imageData downloaded from
+     * @a sourceUrl, decoding it only if it isn't already cached.
+     */
+    public Image getImage(URL sourceUrl,
+                          byte[] imageData) {
+        // The format of the image is hinted by its file name.
+        String formatName = ImageEntity.getFormatName(sourceUrl.getFile());
+
+        if (mMaxWeight == 0 || imageData == null)
+            return PlatformStrategy.instance().makeImage(imageData,
+                                                         formatName);
+
+        // The same URL can return different contents over time, so
+        // the contents are part of the key.
+        String key = makeKey(sourceUrl, imageData);
+
+        synchronized (this) {
+            Image image = mImages.get(key);
+            if (image != null) {
+                mHits.incrementAndGet();
+                // The caller gets its own reference to the Image.
+                image.retain();
+                return image;
+            }
+        }
+
+        // Decode the image without holding the lock.
+        mMisses.incrementAndGet();
+        Image image = PlatformStrategy.instance().makeImage(imageData,
+                                                            formatName);
+
+        return image.getSizeInBytes() > 0
+            ? put(key, image)
+            : image;
+    }
+
+    /**
+     * Returns the number of Images found in the cache.
+     */
+    public long getHits() {
+        return mHits.get();
+    }
+
+    /**
+     * Returns the number of Images that had to be decoded.
+     */
+    public long getMisses() {
+        return mMisses.get();
+    }
+
+    /**
+     * Returns the number of Images evicted from the cache.
+     */
+    public long getEvictions() {
+        return mEvictions.get();
+    }
+
+    /**
+     * Returns a summary of the cache's counters.
+     */
+    @Override
+    public synchronized String toString() {
+        return "hits = " + getHits()
+            + ", misses = " + getMisses()
+            + ", evictions = " + getEvictions()
+            + ", bytes = " + mWeight;
+    }
+
+    /**
+     * Add the @a image for @a key to the cache, evicting the least
+     * recently used Images if needed, and return the cached Image.
+     * If another Thread cached the same key first its Image is
+     * returned instead so that all callers share one instance.  The
+     * cache holds its own reference to each cached Image, which is
+     * released when the Image is evicted.
+     */
+    private synchronized Image put(String key, Image image) {
+        Image cached = mImages.get(key);
+        if (cached != null) {
+            image.release();
+            cached.retain();
+            return cached;
+        }
+
+        long weight = image.getSizeInBytes();
+        if (weight > mMaxWeight)
+            return image;
+
+        // Every ImageEntity that hits the cache gets the same Image.
+        image.share();
+        image.retain();
+        mImages.put(key, image);
+        mWeight += weight;
+
+        for (Iterator<Map.Entry<String, Image>> iterator =
+                 mImages.entrySet().iterator();
+             mWeight > mMaxWeight && iterator.hasNext();) {
+            Image evicted = iterator.next().getValue();
+            mWeight -= evicted.getSizeInBytes();
+            iterator.remove();
+            evicted.release();
+            mEvictions.incrementAndGet();
+        }
+
+        return image;
+    }
+
+    /**
+     * Returns the key for the @a imageData downloaded from @a
+     * sourceUrl, which combines the URL with the length and checksum
+     * of the data.
+     */
+    private static String makeKey(URL sourceUrl,
+                                  byte[] imageData) {
+        CRC32 checksum = new CRC32();
+        checksum.update(imageData, 0, imageData.length);
+
+        return sourceUrl.toExternalForm()
+            + '#' + imageData.length
+            + '#' + Long.toHexString(checksum.getValue());
+    }
+}
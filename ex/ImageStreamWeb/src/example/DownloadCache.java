@@ -0,0 +1,605 @@
+package example;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @class DownloadCache
+ *
+ * @brief Downloads the contents of URLs via a two-tier cache keyed by
+ *        URL, i.e., an in-memory LRU cache bounded by the number of
+ *        bytes it holds, backed by a store on disk.  Cached HTTP
+ *        entries are revalidated with their ETag and/or
+ *        Last-Modified validators, so an unchanged image costs a
+ *        "304 Not Modified" round-trip rather than a full download.
+ *        This class is a singleton, so the cache is shared by all
+ *        the ImageStreams in a JVM, e.g., across MainConsole tests
+ *        and servlet requests.  The on-disk tier is bounded by a byte
+ *        budget too: a disk hit touches the entry's modification
+ *        time, and once the directory outgrows the budget the entries
+ *        that were used least recently are deleted.
+ */
+public class DownloadCache {
+    /**
+     * The singleton @a DownloadCache instance.
+     */
+    private static DownloadCache sUniqueInstance = null;
+
+    /**
+     * The size of the image downloading buffer.
+     */
+    private static final int BUFFER_SIZE = 4096;
+
+    /**
+     * How old a temporary file left in the directory must be, in
+     * milliseconds, before it's deleted as the remains of a write
+     * that was interrupted (e.g., by the JVM exiting).
+     */
+    private static final long STALE_TEMP_FILE_MILLIS = 60 * 60 * 1000L;
+
+    /**
+     * The contents downloaded from a URL along with the validators
+     * used to check whether they're still current.
+     */
+    private static class Entry {
+        final byte[] mContent;
+        final String mETag;
+        final String mLastModified;
+
+        Entry(byte[] content, String eTag, String lastModified) {
+            mContent = content;
+            mETag = eTag;
+            mLastModified = lastModified;
+        }
+    }
+
+    /**
+     * Reads the contents of a URL from a stream, e.g., by decoding
+     * them as an image.
+     */
+    @FunctionalInterface
+    public interface ContentReader<T> {
+        T read(InputStream istream) throws IOException;
+    }
+
+    /**
+     * The in-memory tier, which is kept in least-recently-used order.
+     */
+    private final LinkedHashMap<String, Entry> mMemoryCache =
+        new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * The maximum number of bytes held in the in-memory tier, or 0
+     * if caching is disabled.
+     */
+    private final long mMaxMemoryBytes;
+
+    /**
+     * The number of bytes currently held in the in-memory tier.
+     */
+    private long mMemoryBytes = 0;
+
+    /**
+     * The directory of the on-disk tier.
+     */
+    private final File mDirectory;
+
+    /**
+     * The maximum number of bytes held in the on-disk tier.
+     */
+    private final long mMaxDiskBytes;
+
+    /**
+     * The number of bytes held in the on-disk tier, counting the
+     * entries written since the directory was last trimmed.
+     */
+    private long mDiskBytes = 0;
+
+    /**
+     * Guards mDiskBytes and the trimming of the directory, which is
+     * kept apart from the lock of the in-memory tier so lookups
+     * aren't held up while the directory is scanned.
+     */
+    private final Object mDiskLock = new Object();
+
+    /**
+     * The number of downloads served from the cache.
+     */
+    private final AtomicLong mHits = new AtomicLong(0);
+
+    /**
+     * The number of downloads that went to the network.
+     */
+    private final AtomicLong mMisses = new AtomicLong(0);
+
+    /**
+     * Method to return the one and only singleton instance.
+     */
+    public static synchronized DownloadCache instance() {
+        if (sUniqueInstance == null)
+            sUniqueInstance =
+                new DownloadCache(Options.instance().getDownloadCacheSize(),
+                                  Options.instance().getDownloadCacheDiskSize(),
+                                  new File(System.getProperty("java.io.tmpdir"),
+                                           "ImageStreamCache"));
+
+        return sUniqueInstance;
+    }
+
+    /**
+     * Constructor initializes the data members so that up to @a
+     * maxMemoryBytes are cached in memory and up to @a maxDiskBytes
+     * are stored in @a directory.  Entries left in the directory by
+     * an earlier run that don't fit the budget are deleted.
+     */
+    private DownloadCache(long maxMemoryBytes,
+                          long maxDiskBytes,
+                          File directory) {
+        mMaxMemoryBytes = maxMemoryBytes;
+        mMaxDiskBytes = maxDiskBytes;
+        mDirectory = directory;
+
+        if (isEnabled()) {
+            mDirectory.mkdirs();
+            trimDisk();
+        }
+    }
+
+    /**
+     * Returns true if downloads are cached.
+     */
+    public boolean isEnabled() {
+        return mMaxMemoryBytes > 0;
+    }
+
+    /**
+     * Returns the number of downloads served from the cache.
+     */
+    public long getHits() {
+        return mHits.get();
+    }
+
+    /**
+     * Returns the number of downloads that went to the network.
+     */
+    public long getMisses() {
+        return mMisses.get();
+    }
+
+    /**
+     * Download the contents found at the given @a url and return them
+     * as a raw byte array, using the cache if possible.
+     */
+    public byte[] download(URL url) throws IOException {
+        URLConnection connection = url.openConnection();
+
+        // Only HTTP responses carry validators, so other kinds of
+        // URLs (e.g., "file:" URLs) are always read directly.
+        if (!isEnabled()
+            || !(connection instanceof HttpURLConnection)) {
+            try (InputStream istream = connection.getInputStream()) {
+                return readContent(istream);
+            }
+        }
+
+        HttpURLConnection httpConnection =
+            (HttpURLConnection) connection;
+        String key = url.toExternalForm();
+        Entry cached = get(key);
+
+        // Ask the server to only send the contents if they've changed
+        // since they were cached.
+        setValidators(httpConnection, cached);
+
+        try {
+            if (cached != null
+                && httpConnection.getResponseCode()
+                   == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                mHits.incrementAndGet();
+                release(httpConnection);
+                return cached.mContent;
+            }
+
+            byte[] content;
+            try (InputStream istream = httpConnection.getInputStream()) {
+                content = readContent(istream);
+            }
+            mMisses.incrementAndGet();
+
+            // Only cache contents that can be revalidated later.
+            String eTag = httpConnection.getHeaderField("ETag");
+            String lastModified =
+                httpConnection.getHeaderField("Last-Modified");
+            if (eTag != null || lastModified != null)
+                put(key, new Entry(content, eTag, lastModified));
+
+            return content;
+        } catch (IOException e) {
+            release(httpConnection);
+            throw e;
+        }
+    }
+
+    /**
+     * Download the contents found at the given @a url and hand them
+     * to the @a reader as a stream, e.g., to decode an image straight
+     * from the network rather than from a byte array holding all of
+     * it.  Returns what the reader returns.  The contents are only
+     * held in memory if they're cached, in which case a cache hit is
+     * read from memory, or if a @a tee is given, in which case all of
+     * them are also written to it.  Whether a response is cached is
+     * decided from its headers before its body is read, so contents
+     * that won't be cached are never copied for the cache.
+     */
+    public <T> T download(URL url,
+                          ContentReader<T> reader,
+                          ContentBuffer tee) throws IOException {
+        URLConnection connection = url.openConnection();
+
+        // Only HTTP responses carry validators, so other kinds of
+        // URLs (e.g., "file:" URLs) are always read directly.
+        if (!isEnabled()
+            || !(connection instanceof HttpURLConnection)) {
+            try (InputStream istream = connection.getInputStream()) {
+                return read(istream, reader, tee);
+            }
+        }
+
+        HttpURLConnection httpConnection =
+            (HttpURLConnection) connection;
+        String key = url.toExternalForm();
+        Entry cached = get(key);
+
+        setValidators(httpConnection, cached);
+
+        try {
+            if (cached != null
+                && httpConnection.getResponseCode()
+                   == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                mHits.incrementAndGet();
+                release(httpConnection);
+                return read(new ByteArrayInputStream(cached.mContent),
+                            reader,
+                            tee);
+            }
+
+            // Only cache contents that can be revalidated later and
+            // whose length is known to fit in memory, since they're
+            // held there while they're read.
+            String eTag = httpConnection.getHeaderField("ETag");
+            String lastModified =
+                httpConnection.getHeaderField("Last-Modified");
+            long length = httpConnection.getContentLengthLong();
+            boolean cacheable = (eTag != null || lastModified != null)
+                && length >= 0
+                && length <= mMaxMemoryBytes;
+
+            ContentBuffer copy = tee;
+            if (cacheable) {
+                if (copy == null)
+                    copy = new ContentBuffer();
+                copy.expect(length);
+            }
+
+            T result;
+            try (InputStream istream = httpConnection.getInputStream()) {
+                result = read(istream, reader, copy);
+            }
+            mMisses.incrementAndGet();
+
+            // The cache shares the array with the caller's tee, the
+            // same way a cache hit shares it with every caller.
+            if (cacheable)
+                put(key, new Entry(copy.getContent(), eTag, lastModified));
+
+            return result;
+        } catch (IOException e) {
+            release(httpConnection);
+            throw e;
+        }
+    }
+
+    /**
+     * Hand the @a istream to the @a reader, copying all of it to the
+     * @a tee if one is given.  Returns what the reader returns.
+     */
+    private static <T> T read(InputStream istream,
+                              ContentReader<T> reader,
+                              ContentBuffer tee) throws IOException {
+        if (tee == null)
+            return reader.read(istream);
+
+        TeeInputStream teeStream = new TeeInputStream(istream, tee);
+        T result = reader.read(teeStream);
+
+        // The reader may stop before the end of the stream (e.g., at
+        // the end of an image), so copy the rest too.
+        teeStream.drain();
+        return result;
+    }
+
+    /**
+     * Ask the server behind the @a httpConnection to only send the
+     * contents if they've changed since they were @a cached, if they
+     * were.
+     */
+    private static void setValidators(HttpURLConnection httpConnection,
+                                      Entry cached) {
+        if (cached != null) {
+            if (cached.mETag != null)
+                httpConnection.setRequestProperty("If-None-Match",
+                                                  cached.mETag);
+            if (cached.mLastModified != null)
+                httpConnection.setRequestProperty("If-Modified-Since",
+                                                  cached.mLastModified);
+        }
+    }
+
+    /**
+     * Finish with the response of the @a httpConnection without
+     * reading its body, e.g., after a "304 Not Modified" or an error.
+     * The body (if any) is read and closed rather than calling
+     * disconnect(), so the keep-alive connection is reused by the
+     * next request to the same server instead of being closed.
+     */
+    private static void release(HttpURLConnection httpConnection) {
+        try (InputStream istream = httpConnection.getErrorStream() != null
+             ? httpConnection.getErrorStream()
+             : httpConnection.getInputStream()) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (istream.read(buffer) >= 0)
+                continue;
+        } catch (IOException e) {
+            // The connection can't be reused, which is all that's
+            // lost.
+        }
+    }
+
+    /**
+     * Read the contents of @a istream into a raw byte array.
+     */
+    static byte[] readContent(InputStream istream) throws IOException {
+        // Creates a new ByteArrayOutputStream to write the downloaded
+        // contents to a byte array, which is a generic form of the
+        // image.
+        ByteArrayOutputStream ostream =
+            new ByteArrayOutputStream();
+
+        // This is the buffer in which the input data will be stored
+        byte[] readBuffer = new byte[BUFFER_SIZE];
+        int bytes;
+
+        // While there is unread data from the inputStream, continue
+        // writing data to the byte array.
+        while ((bytes = istream.read(readBuffer)) > 0)
+            ostream.write(readBuffer, 0, bytes);
+
+        return ostream.toByteArray();
+    }
+
+    /**
+     * Returns the entry for @a key from memory or, failing that, from
+     * disk, or null if it's not cached.
+     */
+    private Entry get(String key) {
+        synchronized (this) {
+            Entry entry = mMemoryCache.get(key);
+            if (entry != null)
+                return entry;
+        }
+
+        Entry entry = readFromDisk(key);
+        if (entry != null)
+            putInMemory(key, entry);
+        return entry;
+    }
+
+    /**
+     * Store the @a entry for @a key in both tiers.
+     */
+    private void put(String key, Entry entry) {
+        putInMemory(key, entry);
+        writeToDisk(key, entry);
+    }
+
+    /**
+     * Store the @a entry for @a key in memory and evict the least
+     * recently used entries until the in-memory tier fits its budget.
+     */
+    private synchronized void putInMemory(String key, Entry entry) {
+        // Entries that are too big for memory are only kept on disk.
+        if (entry.mContent.length > mMaxMemoryBytes)
+            return;
+
+        Entry previous = mMemoryCache.put(key, entry);
+        if (previous != null)
+            mMemoryBytes -= previous.mContent.length;
+        mMemoryBytes += entry.mContent.length;
+
+        for (Iterator<Map.Entry<String, Entry>> iterator =
+                 mMemoryCache.entrySet().iterator();
+             mMemoryBytes > mMaxMemoryBytes && iterator.hasNext();) {
+            mMemoryBytes -= iterator.next().getValue().mContent.length;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Returns the entry for @a key stored on disk, or null if there
+     * isn't one.
+     */
+    private Entry readFromDisk(String key) {
+        File metaFile = new File(mDirectory, fileName(key) + ".meta");
+        File contentFile = new File(mDirectory, fileName(key) + ".content");
+        if (!metaFile.exists() || !contentFile.exists())
+            return null;
+
+        try (InputStream istream = Files.newInputStream(metaFile.toPath())) {
+            Properties meta = new Properties();
+            meta.load(istream);
+
+            // Guard against a (very unlikely) collision of the names.
+            if (!key.equals(meta.getProperty("url")))
+                return null;
+
+            Entry entry = new Entry(Files.readAllBytes(contentFile.toPath()),
+                                    meta.getProperty("etag"),
+                                    meta.getProperty("lastModified"));
+
+            // The modification time orders the entries for eviction,
+            // so touch it to mark the entry as recently used.
+            contentFile.setLastModified(System.currentTimeMillis());
+            return entry;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Store the @a entry for @a key on disk.  Each file is written to
+     * a temporary file and then renamed so a concurrent reader never
+     * sees a partially written entry.
+     */
+    private void writeToDisk(String key, Entry entry) {
+        // Entries that are too big for the disk are only kept in
+        // memory, if they fit there.
+        if (entry.mContent.length > mMaxDiskBytes)
+            return;
+
+        Properties meta = new Properties();
+        meta.setProperty("url", key);
+        if (entry.mETag != null)
+            meta.setProperty("etag", entry.mETag);
+        if (entry.mLastModified != null)
+            meta.setProperty("lastModified", entry.mLastModified);
+
+        try {
+            File contentTemp = File.createTempFile("content", null, mDirectory);
+            Files.write(contentTemp.toPath(), entry.mContent);
+            Files.move(contentTemp.toPath(),
+                       new File(mDirectory, fileName(key) + ".content").toPath(),
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+
+            File metaTemp = File.createTempFile("meta", null, mDirectory);
+            try (OutputStream ostream = Files.newOutputStream(metaTemp.toPath())) {
+                meta.store(ostream, null);
+            }
+            Files.move(metaTemp.toPath(),
+                       new File(mDirectory, fileName(key) + ".meta").toPath(),
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // The entry is still cached in memory.
+            PlatformStrategy.instance().errorLog("DownloadCache",
+                                                 "unable to store "
+                                                 + key
+                                                 + " on disk: "
+                                                 + e);
+        }
+
+        // The directory is rescanned only once it may have outgrown
+        // its budget, rather than after every write.  An entry that
+        // replaced an older one is counted twice until then, which
+        // only makes the rescan happen sooner.
+        boolean trim;
+        synchronized (mDiskLock) {
+            mDiskBytes += entry.mContent.length;
+            trim = mDiskBytes > mMaxDiskBytes;
+        }
+        if (trim)
+            trimDisk();
+    }
+
+    /**
+     * Delete the entries on disk that were used least recently (i.e.,
+     * whose contents have the oldest modification times) until the
+     * rest fit the on-disk budget, along with stale temporary files.
+     */
+    private void trimDisk() {
+        synchronized (mDiskLock) {
+            File[] files = mDirectory.listFiles();
+            if (files == null)
+                return;
+
+            long now = System.currentTimeMillis();
+            long bytes = 0;
+            for (File file : files) {
+                if (file.getName().endsWith(".tmp")) {
+                    if (now - file.lastModified() > STALE_TEMP_FILE_MILLIS)
+                        file.delete();
+                } else
+                    bytes += file.length();
+            }
+
+            File[] contentFiles =
+                mDirectory.listFiles((directory, name) -> name.endsWith(".content"));
+            if (contentFiles != null) {
+                // Read each modification time once, since a concurrent
+                // disk hit may change it while the files are sorted.
+                long[] lastModified = new long[contentFiles.length];
+                Integer[] order = new Integer[contentFiles.length];
+                for (int i = 0; i < contentFiles.length; i++) {
+                    lastModified[i] = contentFiles[i].lastModified();
+                    order[i] = i;
+                }
+                Arrays.sort(order,
+                            Comparator.comparingLong(i -> lastModified[i]));
+
+                for (int i = 0; i < order.length && bytes > mMaxDiskBytes; i++) {
+                    File contentFile = contentFiles[order[i]];
+                    String name = contentFile.getName();
+                    File metaFile =
+                        new File(mDirectory,
+                                 name.substring(0, name.length() - ".content".length())
+                                 + ".meta");
+
+                    // The meta file goes first, so a concurrent reader
+                    // never finds the meta file without the contents.
+                    long length = contentFile.length() + metaFile.length();
+                    metaFile.delete();
+                    if (contentFile.delete())
+                        bytes -= length;
+                }
+            }
+
+            mDiskBytes = bytes;
+        }
+    }
+
+    /**
+     * Returns the name of the files on disk for @a key, which is the
+     * SHA-1 digest of the key in hex.
+     */
+    private static String fileName(String key) {
+        try {
+            StringBuilder name = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-1")
+                     .digest(key.getBytes(StandardCharsets.UTF_8)))
+                name.append(String.format("%02x", b));
+            return name.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-1.
+            throw new IllegalStateException(e);
+        }
+    }
+}
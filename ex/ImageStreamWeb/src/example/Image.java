@@ -5,7 +5,44 @@ package example;
  *
  * @brief Defines a platform-independent Image interface, which can be
  *        implemented for different runtime environments, e.g.,
- *        Android or plain Java.
+ *        Android or plain Java.  Decoded Images may be shared by
+ *        several ImageEntity objects.  A shared Image is immutable, so
+ *        a filter that changes its pixels writes them to a new Image
+ *        (i.e., copy-on-write), whereas an Image that isn't shared is
+ *        owned by the ImageEntity holding it and may be changed in
+ *        place by the filter it's passed to.  Images are reference
+ *        counted so their pixel buffers can be recycled as soon as
+ *        they've been stored.
  */
 interface Image {
+    /**
+     * Returns the number of bytes needed to hold the pixels of the
+     * Image, i.e., width x height x bytes-per-pixel, or 0 if the
+     * Image couldn't be decoded.
+     */
+    long getSizeInBytes();
+
+    /**
+     * Marks the Image as shared, so its pixels are never changed
+     * again.
+     */
+    void share();
+
+    /**
+     * Returns true if the Image is shared.
+     */
+    boolean isShared();
+
+    /**
+     * Adds a reference to the Image.  An Image starts out with one
+     * reference, which belongs to the code that created it.
+     */
+    void retain();
+
+    /**
+     * Releases a reference to the Image.  Once the last reference is
+     * released the Image's pixels are recycled, so it must not be
+     * used any more.
+     */
+    void release();
 }
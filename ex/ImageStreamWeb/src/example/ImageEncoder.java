@@ -0,0 +1,39 @@
+package example;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * @interface ImageEncoder
+ *
+ * @brief Encodes an Image into an output file.  Each platform makes
+ *        its encoders via PlatformStrategy.makeImageEncoder(), and
+ *        PlatformStrategy.getImageEncoder() reuses them for all the
+ *        images stored by the same Thread, so an encoder needn't be
+ *        thread-safe but may keep state (e.g., buffers) between
+ *        images.
+ */
+public interface ImageEncoder {
+    /**
+     * The formats images can be stored in.
+     */
+    public static enum Format {
+        PNG,   // PNG at the deflate level given by Options.
+        JPEG,  // JPEG at the quality given by Options.
+        RAW,   // Uncompressed pixels, for downstream consumers.
+        SOURCE // JPEG if the image was downloaded as a JPEG, else PNG.
+    }
+
+    /**
+     * Encode the @a image and write it to the @a output.
+     */
+    void encode(Image image,
+                OutputStream output) throws IOException;
+
+    /**
+     * Returns the file name extension of the images this encoder
+     * writes, without the '.' (e.g., "png", "jpg", or "raw"), which
+     * is given to the files they're stored in.
+     */
+    String getExtension();
+}
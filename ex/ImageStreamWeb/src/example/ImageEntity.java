@@ -10,7 +10,10 @@ import filters.Filter;
  * @brief Stores meta-data about an Image and also provides methods
  *        for common image- and file-related tasks, such as decoding
  *        raw byte arrays into an Image and setting/getting filter and
- *        file names.
+ *        file names.  The downloaded bytes are kept and only decoded
+ *        once a filter that touches the pixels asks for the Image, so
+ *        an image whose pixels are never needed (e.g., one that's
+ *        only passed through a NullFilter) is never decoded.
  */
 public class ImageEntity {
     /**
@@ -18,6 +21,34 @@ public class ImageEntity {
      */
     private Image mImage;
 
+    /**
+     * The compressed image data downloaded from mSourceUrl, or null
+     * if this ImageEntity was constructed from an Image.
+     */
+    private byte[] mImageData;
+
+    /**
+     * True if mImage is decoded from mImageData when it's needed.
+     */
+    private boolean mDecodeLazily;
+
+    /**
+     * Whether the Image is too big to be decoded whole, so it's
+     * processed as a TileSet instead, or null until that's known.
+     */
+    private Boolean mTiled;
+
+    /**
+     * Until the Image is decoded, the number of references to it held
+     * by the users of this ImageEntity.
+     */
+    private int mReferences = 1;
+
+    /**
+     * Until the Image is decoded, whether it's shared.
+     */
+    private boolean mShared;
+
     /**
      * The source URL from which the result was downloaded.
      */
@@ -33,6 +64,17 @@ public class ImageEntity {
      */
     protected boolean mSucceeded;
 
+    /**
+     * The iteration cycle of the ImageStream this result belongs to.
+     */
+    protected long mCycle;
+
+    /**
+     * The StageMetrics of the ImageStream this result belongs to, or
+     * null if it doesn't belong to one.
+     */
+    protected StageMetrics mMetrics;
+
     /**
      * Construct an ImageEntity from a byte array of @a imageData
      * downloaded from a URL @a source.
@@ -46,7 +88,7 @@ public class ImageEntity {
         mFilterName = null;
         mSucceeded = true;
         
-        // Decode the imageData into a Bitmap.
+        // Keep the imageData, which is decoded when it's needed.
         setImage(imageData);
     }
 
@@ -67,20 +109,105 @@ public class ImageEntity {
     }
 
     /**
-     * Decodes a byte[] into an @a Image that can be used in the rest
-     * of the application.
+     * Construct a new ImageEntity from an @a Image that was decoded
+     * while it was downloaded from @a sourceURL, along with the
+     * compressed @a imageData it was downloaded as, which may be null
+     * if they weren't kept.
+     */
+    public ImageEntity(URL sourceURL,
+                       Image image,
+                       byte[] imageData) {
+        this(sourceURL, image);
+        mImageData = imageData;
+    }
+
+    /**
+     * Sets the byte[] that's decoded into an @a Image the first time
+     * getImage() is called.
      */
-    public void setImage(byte[] imageData) {
-        mImage = PlatformStrategy.instance().makeImage(imageData);
+    public synchronized void setImage(byte[] imageData) {
+        mImageData = imageData;
+        mImage = null;
+        mDecodeLazily = true;
+        mTiled = null;
     }
 
     /**
-     * Returns the @a Image stored by this ImageEntity.
+     * Returns the @a Image stored by this ImageEntity, decoding it if
+     * need be.  The Image comes from the DecodedImageCache, so it may
+     * be shared with other ImageEntity objects.
      */
-    public Image getImage() {
+    public synchronized Image getImage() {
+        if (mImage == null && mDecodeLazily) {
+            long start = System.nanoTime();
+            mImage = DecodedImageCache.instance().getImage(mSourceUrl,
+                                                           mImageData);
+            if (mMetrics != null)
+                mMetrics.record(StageMetrics.DECODE, start);
+
+            // Hand over the references and sharing that were
+            // requested before the Image was decoded.
+            if (mShared)
+                mImage.share();
+            for (int i = 1; i < mReferences; ++i)
+                mImage.retain();
+        }
+
         return mImage;
     }
 
+    /**
+     * Returns true if this ImageEntity's Image hasn't been decoded
+     * and is bigger than the tile size chosen by Options, in which
+     * case it's filtered and stored as a TileSet rather than decoded
+     * whole by getImage().  Only the image's header is read to tell.
+     */
+    public synchronized boolean isTiled() {
+        if (mTiled == null)
+            mTiled = mImage == null
+                && mImageData != null
+                && TileSet.isTiled(mImageData, getFormatName());
+
+        return mTiled;
+    }
+
+    /**
+     * Returns the compressed image data this ImageEntity was
+     * downloaded as, or null if it was constructed from an Image,
+     * e.g., by a filter that changed the pixels.
+     */
+    public byte[] getImageData() {
+        return mImageData;
+    }
+
+    /**
+     * Marks this ImageEntity's Image as shared by @a references users,
+     * each of which releases its own reference once it's done with
+     * the Image.  The Image needn't be decoded yet.
+     */
+    public synchronized void shareImage(int references) {
+        if (mImage != null) {
+            mImage.share();
+            for (int i = 1; i < references; ++i)
+                mImage.retain();
+        } else {
+            mShared = true;
+            mReferences += references - 1;
+        }
+    }
+
+    /**
+     * Releases this ImageEntity's reference to its Image, whose pixels
+     * are recycled once no other ImageEntity refers to it.  The Image
+     * must not be used after it's released.
+     */
+    public synchronized void releaseImage() {
+        if (mImage != null)
+            mImage.release();
+        else if (mReferences > 0)
+            --mReferences;
+    }
+
     /**
      * Modifies the source URL of this result. Necessary for when the
      * result is constructed before it is associated with data.
@@ -125,6 +252,36 @@ public class ImageEntity {
         return mSucceeded;
     }
 
+    /**
+     * Sets the iteration cycle this ImageEntity belongs to.
+     */
+    public void setCycle(long cycle) {
+        mCycle = cycle;
+    }
+
+    /**
+     * Returns the iteration cycle this ImageEntity belongs to.
+     */
+    public long getCycle() {
+        return mCycle;
+    }
+
+    /**
+     * Sets the StageMetrics of the ImageStream this ImageEntity
+     * belongs to.
+     */
+    public void setMetrics(StageMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Returns the StageMetrics of the ImageStream this ImageEntity
+     * belongs to, or null if it doesn't belong to one.
+     */
+    public StageMetrics getMetrics() {
+        return mMetrics;
+    }
+
     /**
      * Returns the file name from the URL this ImageEntity was
      * constructed from.
@@ -134,13 +291,30 @@ public class ImageEntity {
             (mSourceUrl.getFile().lastIndexOf('/'));
     }
 
+    /**
+     * Returns the file name from the URL this ImageEntity was
+     * constructed from with @a extension appended to all of it
+     * (e.g., "ka.png.jpg" for "ka.png" and "jpg"), so images from
+     * sources with different names never get the same name.
+     */
+    public String getFileName(String extension) {
+        return getFileName() + "." + extension;
+    }
+
     /**
      * Returns the format of the image from the URL in string form.
      */
     public String getFormatName() {
+        return getFormatName(mSourceUrl.getFile());
+    }
+
+    /**
+     * Returns the format of the image in the file @a fileName in
+     * string form.
+     */
+    public static String getFormatName(String fileName) {
         String format =
-            mSourceUrl.getFile().substring
-            (mSourceUrl.getFile().lastIndexOf('.') + 1);
+            fileName.substring(fileName.lastIndexOf('.') + 1);
         format = format.equalsIgnoreCase("jpeg") ? "jpg" : format;
         return format;
     }
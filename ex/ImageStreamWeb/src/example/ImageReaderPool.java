@@ -0,0 +1,113 @@
+package example;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * @class ImageReaderPool
+ *
+ * @brief Keeps an ImageIO ImageReader per format for each Thread, so
+ *        decoding an image doesn't look up the reader plugins in the
+ *        IIORegistry and create a new reader every time, which costs
+ *        as much as decoding a small image.  The reader is picked by
+ *        the format hinted by the image's file name (e.g., "png" or
+ *        "jpg"), and only if its plugin doesn't recognize the data
+ *        (e.g., for a URL without a file extension, or a PNG served
+ *        as ".jpg") are all the plugins probed.  Readers are reset
+ *        when they're returned, so they hold no reference to the
+ *        input between uses.
+ */
+final class ImageReaderPool {
+    /**
+     * The idle readers of each Thread, keyed by format name.
+     */
+    private static final ThreadLocal<Map<String, ImageReader>> sReaders =
+        ThreadLocal.withInitial(HashMap::new);
+
+    /**
+     * Returns an ImageReader for the image in the @a istream, which
+     * is in the format @a formatName (e.g., "png" or "jpg") if that's
+     * not null, or null if no reader recognizes the image.  The
+     * reader must be given back with release() once it's done.
+     */
+    static ImageReader acquire(String formatName,
+                               ImageInputStream istream) throws IOException {
+        if (formatName != null) {
+            String key = formatName.toLowerCase();
+
+            // Take the reader out of the pool while it's in use, in
+            // case another image of the same format is decoded on
+            // this Thread meanwhile.
+            ImageReader reader = sReaders.get().remove(key);
+            if (reader == null)
+                reader = newReader(key);
+
+            if (reader != null
+                && reader.getOriginatingProvider().canDecodeInput(istream))
+                return reader;
+
+            release(key, reader);
+        }
+
+        // The format isn't known or the data doesn't match it, so
+        // ask all the plugins, the same way ImageIO.read() does.
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(istream);
+        return readers.hasNext()
+            ? readers.next()
+            : null;
+    }
+
+    /**
+     * Give back the @a reader that was acquired for @a formatName, so
+     * the next image of that format can reuse it.
+     */
+    static void release(String formatName,
+                        ImageReader reader) {
+        if (reader == null)
+            return;
+
+        reader.reset();
+
+        // Only pool readers for the format they were picked for, and
+        // only one per format.
+        if (formatName == null
+            || !isFor(reader, formatName.toLowerCase())
+            || sReaders.get().putIfAbsent(formatName.toLowerCase(), reader) != null)
+            reader.dispose();
+    }
+
+    /**
+     * Returns a new ImageReader for the format @a formatName, or null
+     * if there's none.
+     */
+    private static ImageReader newReader(String formatName) {
+        Iterator<ImageReader> readers =
+            ImageIO.getImageReadersByFormatName(formatName);
+        return readers.hasNext()
+            ? readers.next()
+            : null;
+    }
+
+    /**
+     * Returns true if the @a reader reads the format @a formatName.
+     */
+    private static boolean isFor(ImageReader reader,
+                                 String formatName) {
+        for (String name : reader.getOriginatingProvider().getFormatNames())
+            if (name.equalsIgnoreCase(formatName))
+                return true;
+        return false;
+    }
+
+    /**
+     * Make the constructor private for a utility class.
+     */
+    private ImageReaderPool() {
+    }
+}
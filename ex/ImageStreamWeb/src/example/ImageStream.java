@@ -1,18 +1,22 @@
 package example;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.URL;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
 
 import filters.Filter;
+import filters.NullFilter;
 import filters.OutputFilterDecorator;
 
 /**
@@ -51,6 +55,14 @@ public abstract class ImageStream extends StreamGang<URL> {
      */
     private Runnable mCompletionHook;
 
+    /**
+     * Clients of ImageStream can supply this optional hook so they
+     * know when each iteration cycle is done.  It's called with the
+     * number of each cycle in the order the cycles were started, even
+     * if several cycles are in flight at once.
+     */
+    private LongConsumer mCycleCompletionHook = null;
+
     /**
      * A barrier synchronizer that's used to coordinate each iteration
      * cycle, i.e., each call to initiateStream() must initialize and
@@ -60,9 +72,16 @@ public abstract class ImageStream extends StreamGang<URL> {
     protected CountDownLatch mIterationBarrier = null;
 
     /**
-     * Number of Threads in the fixed-size thread pool.
+     * The latencies of the stages each image goes through and the
+     * throughput of each iteration cycle.
+     */
+    private final StageMetrics mMetrics = new StageMetrics();
+
+    /**
+     * The ForkJoinPool the parallel streams run in, or null if they
+     * run in the common pool.
      */
-    private final int MAX_THREADS = 8;
+    private final ForkJoinPool mForkJoinPool;
 
     /**
      * Constructor initializes the superclass and data members.
@@ -81,7 +100,34 @@ public abstract class ImageStream extends StreamGang<URL> {
         mCompletionHook = completionHook;
 
         // Initialize the Executor with a fixed-sized pool of Threads.
-        setExecutor(Executors.newFixedThreadPool(MAX_THREADS));
+        setExecutor(Executors.newFixedThreadPool
+                    (Options.instance().getPoolThreads()));
+
+        // Run the parallel streams in a dedicated ForkJoinPool if
+        // one was asked for, so they don't compete with other users
+        // of the common pool (e.g., other servlet requests).
+        mForkJoinPool = Options.instance().getForkJoinPoolThreads() > 0
+            ? new ForkJoinPool(Options.instance().getForkJoinPoolThreads())
+            : null;
+
+        // Set how many iteration cycles can be processed at once.
+        setMaxCyclesInFlight(Options.instance().getMaxCyclesInFlight());
+    }
+
+    /**
+     * Set the hook that's called when each iteration cycle is done.
+     */
+    public void setCycleCompletionHook(LongConsumer cycleCompletionHook) {
+        mCycleCompletionHook = cycleCompletionHook;
+    }
+
+    /**
+     * Returns the latencies of the stages each image goes through
+     * and the throughput of each iteration cycle, which may be
+     * called while the ImageStream runs.
+     */
+    public StageMetrics getMetrics() {
+        return mMetrics;
     }
 
     /**
@@ -92,7 +138,7 @@ public abstract class ImageStream extends StreamGang<URL> {
     protected List<URL> getNextInput() {
         if (mUrlListIterator.hasNext()) {
             // Note that we're starting a new cycle.
-            incrementCycle();
+            mMetrics.startCycle(incrementCycle());
 
             // Return a List containing the URLs to download
             // concurrently.
@@ -124,17 +170,42 @@ public abstract class ImageStream extends StreamGang<URL> {
         return decoratedFilter.filter(downloadedImage);
     }
 
+    /**
+     * Run the stream @a pipeline in the ForkJoinPool chosen by
+     * Options, i.e., in a dedicated pool or else in the common pool,
+     * and wait for it to finish.  Parallel streams run in the pool
+     * of the Thread that runs their terminal operation.
+     */
+    protected void runInForkJoinPool(Runnable pipeline) {
+        if (mForkJoinPool == null)
+            pipeline.run();
+        else
+            mForkJoinPool.submit(pipeline).join();
+    }
+
     /**
      * Hook method that waits for concurrent processing to complete.
      */
     @Override
     protected void awaitTasksDone() {
+        // The numbers of the iteration cycles that have been
+        // initiated but not yet completed, oldest first, along with
+        // the futures that complete when they are done.
+        Deque<Long> cyclesInFlight = new ArrayDeque<>();
+        Deque<CompletableFuture<Void>> cyclesDone = new ArrayDeque<>();
+
         try {
             // Loop for each iteration cycle of input URLs.
             for (;;) {
-                // Barrier synchronizer that waits until all the
-                // stream processing in this iteration cycle are done.
-                mIterationBarrier.await();
+                // Keep track of the cycle that was just initiated.
+                cyclesInFlight.add(currentCycle());
+                cyclesDone.add(cycleCompletion());
+
+                // Wait for the oldest cycles to complete until
+                // there's room in the window for another cycle.
+                while (cyclesInFlight.size() >= getMaxCyclesInFlight())
+                    retireCycle(cyclesInFlight.remove(),
+                                cyclesDone.remove());
 
                 // Check to see if there's another List of URLs
                 // available to process.
@@ -146,72 +217,260 @@ public abstract class ImageStream extends StreamGang<URL> {
                     initiateStream();
             } 
 
-            // Only call the shutdown() and awaitTermination() methods
-            // if we've actually got an ExecutorService (as opposed to
-            // just an Executor).
-            if (getExecutor() instanceof ExecutorService) {
-                ExecutorService executorService = 
-                    (ExecutorService) getExecutor();
-
-                // Tell the ExecutorService to initiate a graceful
-                // shutdown.
-                executorService.shutdown();
-
-                // Wait for all the tasks in the Thread pool to
-                // complete.
-                executorService.awaitTermination(Long.MAX_VALUE,
-                                                 TimeUnit.NANOSECONDS);
-            }
+            // Wait for the cycles that are still in flight.
+            while (!cyclesInFlight.isEmpty())
+                retireCycle(cyclesInFlight.remove(),
+                            cyclesDone.remove());
+
+            // Shutdown the Executor(s) and wait for them to finish.
+            shutdownExecutors();
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
 
+        // Report the metrics before the completion hook, so they're
+        // out by the time the client moves on.
+        reportMetrics();
+
         // Run the completion hook now that all the image downloading,
         // processing and storing is now complete.
         mCompletionHook.run();
     }
 
+    /**
+     * Hook method that shuts down the Executor(s) used to process the
+     * images and waits for all their tasks to complete.  Subclasses
+     * that use other Executors can override it to shut them down too.
+     */
+    protected void shutdownExecutors() throws InterruptedException {
+        // Only call the shutdown() and awaitTermination() methods if
+        // we've actually got an ExecutorService (as opposed to just
+        // an Executor).
+        if (getExecutor() instanceof ExecutorService) {
+            ExecutorService executorService = 
+                (ExecutorService) getExecutor();
+
+            // Tell the ExecutorService to initiate a graceful
+            // shutdown.
+            executorService.shutdown();
+
+            // Wait for all the tasks in the Thread pool to complete.
+            executorService.awaitTermination(Long.MAX_VALUE,
+                                             TimeUnit.NANOSECONDS);
+        }
+
+        if (mForkJoinPool != null)
+            mForkJoinPool.shutdown();
+    }
+
+    /**
+     * Wait for iteration cycle number @a cycle to finish and its
+     * images to be written by the WriteBehindStore, and then run the
+     * cycle completion hook (if any) for it.
+     */
+    private void retireCycle(long cycle,
+                             CompletableFuture<Void> cycleDone) {
+        cycleDone.join();
+        WriteBehindStore.instance().flush(mMetrics, cycle).join();
+        mMetrics.endCycle(cycle);
+
+        if (mCycleCompletionHook != null)
+            mCycleCompletionHook.accept(cycle);
+    }
+
+    /**
+     * Hook method that returns a CompletableFuture that completes
+     * when all the processing started by the most recent call to
+     * initiateStream() is done.  By default it waits on the
+     * mIterationBarrier and then returns a completed future, which
+     * suits subclasses that finish each cycle before initiateStream()
+     * returns.  Subclasses that process cycles asynchronously
+     * override it so that several cycles can be in flight at once.
+     */
+    protected CompletableFuture<Void> cycleCompletion()
+        throws InterruptedException {
+        // Barrier synchronizer that waits until all the stream
+        // processing in this iteration cycle are done.
+        mIterationBarrier.await();
+
+        return CompletableFuture.completedFuture(null);
+    }
+
     /**
      * Factory method that retrieves the image associated with the @a
      * urlToDownload and creates an ImageEntity to encapsulate it.
      */
     protected ImageEntity makeImageEntity(URL urlToDownload) {
-        return new ImageEntity(urlToDownload,
-                               downloadContent(urlToDownload));
+        // Images are only tiled if their compressed bytes are kept,
+        // since each strip of tiles is decoded from them.
+        if (Options.instance().streamingDecodeEnabled()
+            && Options.instance().getTileSize() == 0)
+            return makeStreamedImageEntity(urlToDownload,
+                                           currentCycle());
+
+        return makeImageEntity(urlToDownload,
+                               downloadContent(urlToDownload),
+                               currentCycle());
+    }
+
+    /**
+     * Factory method that decodes the image at @a urlToDownload
+     * straight from the network stream as it's downloaded, so the
+     * whole compressed image is never held in a byte array, and
+     * creates an ImageEntity tagged with the iteration @a cycle to
+     * encapsulate it.  The downloaded bytes are only kept if the
+     * DownloadCache caches them or passthrough needs them.  The
+     * decoding overlaps the download, so the time of both is recorded
+     * as the DOWNLOAD stage, and the DecodedImageCache isn't used.
+     */
+    protected ImageEntity makeStreamedImageEntity(URL urlToDownload,
+                                                  long cycle) {
+        ContentBuffer imageData =
+            Options.instance().passthroughEnabled()
+            ? new ContentBuffer()
+            : null;
+
+        long start = System.nanoTime();
+        Image image;
+        try {
+            image = ManagedBlocking.call
+                (() -> DownloadCache.instance().download
+                 (urlToDownload,
+                  istream -> {
+                      TeeInputStream counter =
+                          new TeeInputStream(istream, null);
+                      Image decoded =
+                          PlatformStrategy.instance().makeImage
+                          (counter,
+                           ImageEntity.getFormatName(urlToDownload.getFile()));
+                      // Count the bytes after the end of the image too.
+                      counter.drain();
+                      mMetrics.addBytesDownloaded(cycle, counter.getCount());
+                      return decoded;
+                  },
+                  imageData));
+        } catch (IOException e) {
+            e.printStackTrace();
+            // Fail the same way a failed download does.
+            return makeImageEntity(urlToDownload, null, cycle);
+        } finally {
+            mMetrics.record(StageMetrics.DOWNLOAD, start);
+        }
+
+        return prepareImageEntity(new ImageEntity(urlToDownload,
+                                                  image,
+                                                  imageData != null
+                                                  ? imageData.getContent()
+                                                  : null),
+                                  cycle);
+    }
+
+    /**
+     * Factory method that creates an ImageEntity to encapsulate the
+     * @a imageData downloaded from @a sourceUrl and tags it with the
+     * iteration @a cycle it belongs to.
+     */
+    protected ImageEntity makeImageEntity(URL sourceUrl,
+                                          byte[] imageData,
+                                          long cycle) {
+        if (imageData != null)
+            mMetrics.addBytesDownloaded(cycle, imageData.length);
+
+        return prepareImageEntity(new ImageEntity(sourceUrl,
+                                                  imageData),
+                                  cycle);
+    }
+
+    /**
+     * Factory method that creates an ImageEntity for the @a imageData
+     * downloaded from @a sourceUrl like makeImageEntity(), and then
+     * decodes its Image right away if the filters need the pixels.
+     * It's used by ImageStreams with a decode stage of their own, so
+     * the image is decoded in that stage rather than lazily by the
+     * first filter task that asks for it, which would hold up the
+     * image's other filter tasks on the ImageEntity's lock.
+     */
+    protected ImageEntity makeDecodedImageEntity(URL sourceUrl,
+                                                 byte[] imageData,
+                                                 long cycle) {
+        ImageEntity imageEntity = makeImageEntity(sourceUrl,
+                                                  imageData,
+                                                  cycle);
+
+        // A tiled image is decoded one strip at a time by TileSet.
+        if (imageData != null
+            && filtersNeedPixels()
+            && !imageEntity.isTiled())
+            imageEntity.getImage();
+
+        return imageEntity;
+    }
+
+    /**
+     * Returns true unless every filter in mFilters is a NullFilter
+     * and passthrough stores the downloaded bytes as they are, which
+     * is the only case where the pixels are never used.
+     */
+    private boolean filtersNeedPixels() {
+        return !Options.instance().passthroughEnabled()
+            || mFilters.stream()
+                   .anyMatch(filter -> !(filter instanceof NullFilter));
+    }
+
+    /**
+     * Tag the new @a imageEntity with the iteration @a cycle it
+     * belongs to and the metrics of this ImageStream and return it.
+     */
+    private ImageEntity prepareImageEntity(ImageEntity imageEntity,
+                                           long cycle) {
+        imageEntity.setCycle(cycle);
+        imageEntity.setMetrics(mMetrics);
+
+        // The image is passed to each filter, so if there's more than
+        // one filter none of them may change it in place, and each
+        // filter gets its own reference to release once its result is
+        // stored.
+        if (mFilters.size() > 1)
+            imageEntity.shareImage(mFilters.size());
+
+        return imageEntity;
     }
 
     /**
      * Download the contents found at the given URL and return them as
-     * a raw byte array.
-     */
-    private byte[] downloadContent(URL url) {
-        // The size of the image downloading buffer.
-        final int BUFFER_SIZE = 4096;
-
-        // Creates a new ByteArrayOutputStream to write the downloaded
-        // contents to a byte array, which is a generic form of the
-        // image.
-        ByteArrayOutputStream ostream = 
-            new ByteArrayOutputStream();
-        
-        // This is the buffer in which the input data will be stored
-        byte[] readBuffer = new byte[BUFFER_SIZE];
-        int bytes;
-        
-        // Creates an InputStream from the inputUrl from which to read
-    	// the image data.
-        try (InputStream istream = (InputStream) url.openStream()) {
-            // While there is unread data from the inputStream,
-            // continue writing data to the byte array.
-            while ((bytes = istream.read(readBuffer)) > 0) 
-                ostream.write(readBuffer, 0, bytes);
-
-            return ostream.toByteArray();
+     * a raw byte array.  The download goes through the DownloadCache,
+     * so contents that were downloaded before and haven't changed
+     * aren't downloaded again.  The download may block on the
+     * network, so it's run as a ForkJoinPool.ManagedBlocker, which
+     * lets a parallel stream's pool add a Thread while it's blocked.
+     */
+    protected byte[] downloadContent(URL url) {
+        long start = System.nanoTime();
+        try {
+            return ManagedBlocking.call(() -> DownloadCache.instance().download(url));
         } catch (IOException e) {
-            // "Try-with-resources" will clean up the istream
-            // automatically.
             e.printStackTrace();
             return null;
+        } finally {
+            mMetrics.record(StageMetrics.DOWNLOAD, start);
+        }
+    }
+
+    /**
+     * Log the metrics in the format chosen by Options, if any.
+     */
+    private void reportMetrics() {
+        switch (Options.instance().getMetricsFormat()) {
+        case CSV:
+            PlatformStrategy.instance().errorLog(getClass().getSimpleName(),
+                                                 "metrics\n" + mMetrics.toCsv());
+            break;
+        case JSON:
+            PlatformStrategy.instance().errorLog(getClass().getSimpleName(),
+                                                 "metrics " + mMetrics.toJson());
+            break;
+        default:
+            break;
         }
     }
 }
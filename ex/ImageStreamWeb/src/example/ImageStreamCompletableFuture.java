@@ -36,38 +36,41 @@ public class ImageStreamCompletableFuture extends ImageStream {
         // Create a new barrier for this iteration cycle.
         mIterationBarrier = new CountDownLatch(1);
 
-        // Concurrently process each URL in the input.
-        getInput().parallelStream()
-            // Submit the url for downloading asynchronously.
-            .map(url -> CompletableFuture.supplyAsync
-                     (() -> makeImageEntity(url),
-                      getExecutor()).join())
-            // Map each ImageEntity to a parallel stream of the
-            // filtered versions of the entity.
-            .flatMap(imageEntity ->
-                     mFilters.parallelStream()
-                     // Decorate each filter to write the images to
-                     // files.
-                     .map(filter -> new OutputFilterDecorator(filter))
-                     // Submit the imageEntity for asynchronous
-                     // filtering.
-                     .map(decoratedFilter -> 
-                          CompletableFuture.supplyAsync
-                              (() -> decoratedFilter.filter(imageEntity),
-                               getExecutor()).join())
-                     .collect(Collectors.toList()).parallelStream()	
-                     )
-            // Report the success of the pipeline for each filtered
-            // entity.
-            .forEach(image -> PlatformStrategy.instance().errorLog
-                     ("ImageStreamCompletableFuture",
-                      "Operations"
-                      + (image.getSucceeded() == true
-                         ? " succeeded" 
-                         : " failed")
-                      + " on file " 
-                      + image.getSourceURL())
-                     );
+        // Concurrently process each URL in the input, in the
+        // ForkJoinPool chosen by Options.  The join() calls block as
+        // ManagedBlockers, so the pool adds Threads while they wait.
+        runInForkJoinPool(() ->
+            getInput().parallelStream()
+                // Submit the url for downloading asynchronously.
+                .map(url -> CompletableFuture.supplyAsync
+                         (() -> makeImageEntity(url),
+                          getExecutor()).join())
+                // Map each ImageEntity to a parallel stream of the
+                // filtered versions of the entity.
+                .flatMap(imageEntity ->
+                         mFilters.parallelStream()
+                         // Decorate each filter to write the images to
+                         // files.
+                         .map(filter -> new OutputFilterDecorator(filter))
+                         // Submit the imageEntity for asynchronous
+                         // filtering.
+                         .map(decoratedFilter -> 
+                              CompletableFuture.supplyAsync
+                                  (() -> decoratedFilter.filter(imageEntity),
+                                   getExecutor()).join())
+                         .collect(Collectors.toList()).parallelStream()	
+                         )
+                // Report the success of the pipeline for each filtered
+                // entity.
+                .forEach(image -> PlatformStrategy.instance().errorLog
+                         ("ImageStreamCompletableFuture",
+                          "Operations"
+                          + (image.getSucceeded() == true
+                             ? " succeeded" 
+                             : " failed")
+                          + " on file " 
+                          + image.getSourceURL())
+                         ));
 
 
         // Indicate all computations in this iteration are done.
@@ -0,0 +1,139 @@
+package example;
+
+import java.net.URL;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import filters.Filter;
+import filters.OutputFilterDecorator;
+
+/**
+ * @class ImageStreamCompletableFutureAsync
+ *
+ * @brief Customizes ImageStream to use Java 8 CompletableFutures to
+ *        download, decode, process, and store images asynchronously.
+ *        Unlike ImageStreamCompletableFuture, no thread blocks on
+ *        join() while a cycle is in progress.  Instead, each stage
+ *        of the pipeline is chained to the previous one via
+ *        thenApplyAsync() and thenCompose() and the end of each
+ *        iteration cycle is signaled by an allOf() completion.
+ */
+public class ImageStreamCompletableFutureAsync extends ImageStream {
+    /**
+     * Completes when all the processing in the current iteration
+     * cycle is done.  Replaces the mIterationBarrier used by the
+     * other ImageStream implementations.
+     */
+    private CompletableFuture<Void> mCycleDone = null;
+
+    /**
+     * Constructor initializes the superclass and data members.
+     */
+    public ImageStreamCompletableFutureAsync(Filter[] filters,
+                                             Iterator<List<URL>> urlListIterator,
+                                             Runnable completionHook) {
+        super(filters, urlListIterator, completionHook);
+    }
+
+    /**
+     * Initiate the ImageStream processing, which chains Java 8
+     * CompletableFutures to download, decode, process, and store
+     * images without blocking any of the Threads that run them.
+     */
+    @Override
+    protected void initiateStream() {
+        // Remember which cycle these URLs belong to since the next
+        // cycle may start before this one is done.
+        final long cycle = currentCycle();
+
+        // Start an asynchronous pipeline for each URL in the input.
+        CompletableFuture<?>[] pipelines = getInput().stream()
+            .map(url -> processUrlAsync(url, cycle))
+            .toArray(CompletableFuture[]::new);
+
+        // This iteration cycle is done when all its pipelines are
+        // done.
+        mCycleDone = CompletableFuture.allOf(pipelines);
+    }
+
+    /**
+     * Returns a CompletableFuture that completes once the image at @a
+     * url has been downloaded, decoded, and run through all the
+     * filters as part of iteration @a cycle.
+     */
+    protected CompletableFuture<Void> processUrlAsync(URL url,
+                                                      long cycle) {
+        return CompletableFuture
+            // Download the contents of the url asynchronously.
+            .supplyAsync(() -> downloadContent(url),
+                         getDownloadExecutor())
+            // Decode the downloaded bytes into an ImageEntity, unless
+            // the filters never touch its pixels.
+            .thenApplyAsync(imageData ->
+                            makeDecodedImageEntity(url, imageData, cycle),
+                            getExecutor())
+            // Apply all the filters to the ImageEntity.
+            .thenCompose(this::filterImageAsync)
+            // Don't let a failed download or decode of one URL
+            // prevent the rest of the cycle from completing.
+            .exceptionally(ex -> {
+                    PlatformStrategy.instance().errorLog
+                        ("ImageStreamCompletableFutureAsync",
+                         "Operations failed on file "
+                         + url
+                         + " with "
+                         + ex);
+                    return null;
+                });
+    }
+
+    /**
+     * Returns a CompletableFuture that completes once each filter in
+     * mFilters has been applied to @a imageEntity and the results
+     * have been stored.
+     */
+    private CompletableFuture<Void> filterImageAsync(ImageEntity imageEntity) {
+        CompletableFuture<?>[] filteredImages = mFilters.stream()
+            // Decorate each filter to write the images to files.
+            .map(filter -> new OutputFilterDecorator(filter))
+            // Submit the imageEntity for asynchronous filtering.
+            .map(decoratedFilter -> CompletableFuture
+                 .supplyAsync(() -> decoratedFilter.filter(imageEntity),
+                              getExecutor())
+                 // Report the success of the pipeline for each
+                 // filtered entity.
+                 .thenAccept(image -> PlatformStrategy.instance().errorLog
+                             ("ImageStreamCompletableFutureAsync",
+                              "Operations"
+                              + (image.getSucceeded() == true
+                                 ? " succeeded"
+                                 : " failed")
+                              + " on file "
+                              + image.getSourceURL()
+                              + " in cycle "
+                              + image.getCycle())))
+            .toArray(CompletableFuture[]::new);
+
+        return CompletableFuture.allOf(filteredImages);
+    }
+
+    /**
+     * Returns the Executor used to download images, which defaults to
+     * the same Executor used to decode and filter them.  Subclasses
+     * can override this method to run blocking I/O elsewhere.
+     */
+    protected Executor getDownloadExecutor() {
+        return getExecutor();
+    }
+
+    /**
+     * Returns the allOf() completion of the current iteration cycle
+     * rather than waiting on the mIterationBarrier.
+     */
+    @Override
+    protected CompletableFuture<Void> cycleCompletion() {
+        return mCycleDone;
+    }
+}
@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.nio.file.FileVisitResult;
 import java.nio.file.FileVisitor;
 import java.nio.file.Files;
@@ -11,6 +12,7 @@ import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 
 import javax.servlet.ServletConfig;
@@ -150,14 +152,26 @@ public class ImageStreamServlet extends HttpServlet {
             ImageVisitor imageVisitor = new ImageVisitor();
 			
             try {
-                // Visit all subdirectories, building the JSON String
-                Files.walkFileTree(externalFile.toPath(), imageVisitor);
+                String jsonString;
+
+                if (Options.instance().getStoreLayout()
+                    == WriteBehindStore.Layout.SEGMENTS)
+                    // Read the images back from their segments.
+                    jsonString = getSegmentJsonString();
+                else {
+                    // Visit all subdirectories, building the JSON String
+                    Files.walkFileTree(externalFile.toPath(), imageVisitor);
+                    jsonString = imageVisitor.getJsonString();
+                }
 				
                 // Write the response string
-                mResponse.setContentLength(imageVisitor.getJsonString().length());
-                mResponse.getWriter().write(imageVisitor.getJsonString());
+                mResponse.setContentLength(jsonString.length());
+                mResponse.getWriter().write(jsonString);
 				
                 // Clean the tmp directory
+                if (Options.instance().getStoreLayout()
+                    == WriteBehindStore.Layout.SEGMENTS)
+                    SegmentStore.instance().clear();
                 FileUtils.cleanDirectory(externalFile);
 				
                 // Run the completionHook originally intended for the
@@ -169,6 +183,42 @@ public class ImageStreamServlet extends HttpServlet {
             }
         }
 	
+        /**
+         * Returns the same JSON string as the ImageVisitor, but built
+         * from the images in the SegmentStore.
+         */
+        private String getSegmentJsonString() throws IOException {
+            StringBuilder jsonBuilder = new StringBuilder("{\"filterList\":[");
+            SegmentStore segmentStore = SegmentStore.instance();
+            String filterSeparator = "";
+
+            for (Map.Entry<String, List<String>> filter
+                     : segmentStore.getFileNames().entrySet()) {
+                jsonBuilder.append(filterSeparator
+                                   + "{\"filterName\":\"" + filter.getKey() + "\","
+                                   + "\"imageData\":[");
+                String imageSeparator = "";
+
+                for (String fileName : filter.getValue()) {
+                    ByteBuffer image = segmentStore.read(filter.getKey(),
+                                                         fileName);
+                    byte fileContent[] = new byte[image.remaining()];
+                    image.get(fileContent);
+
+                    jsonBuilder.append(imageSeparator
+                                       + "{\"imageName\":\""
+                                       + fileName + "\","
+                                       + "\"image\":\""
+                                       + DatatypeConverter.printBase64Binary(fileContent)
+                                       + "\"}");
+                    imageSeparator = ",";
+                }
+                jsonBuilder.append("]}");
+                filterSeparator = ",";
+            }
+            return jsonBuilder.append("]}").toString();
+        }
+
         /**
          * A custom FileVisitor that constructs the JSON string based
          * on the files downloaded by the ImageStream
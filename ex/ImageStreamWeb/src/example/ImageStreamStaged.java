@@ -0,0 +1,247 @@
+package example;
+
+import java.net.URL;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import filters.Filter;
+
+/**
+ * @class ImageStreamStaged
+ *
+ * @brief Customizes ImageStream to download, decode, process, and
+ *        store images in a staged (SEDA-style) pipeline.  Each of the
+ *        four stages runs on its own StageExecutor, so slow origins
+ *        only tie up the download Threads and CPU-heavy filters only
+ *        tie up the filter Threads.  The bounded queue in front of
+ *        each stage provides backpressure to the stage before it.
+ */
+public class ImageStreamStaged extends ImageStream {
+    /**
+     * The number of tasks each stage queues before blocking the
+     * upstream stage.
+     */
+    private static final int QUEUE_CAPACITY = 64;
+
+    /**
+     * The number of cores on this computer.
+     */
+    private static final int CORES =
+        Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The stage that downloads the contents of each URL.
+     */
+    private final StageExecutor mDownloadStage;
+
+    /**
+     * The stage that decodes the downloaded bytes into an Image.
+     */
+    private final StageExecutor mDecodeStage;
+
+    /**
+     * The stage that applies each filter to a decoded Image.
+     */
+    private final StageExecutor mFilterStage;
+
+    /**
+     * The stage that encodes each filtered Image and stores it.
+     */
+    private final StageExecutor mStoreStage;
+
+    /**
+     * Completes when all the processing in the current iteration
+     * cycle is done.
+     */
+    private CompletableFuture<Void> mCycleDone = null;
+
+    /**
+     * Constructor initializes the superclass and data members with
+     * default sizes for the stages, i.e., several download Threads
+     * per core since they mostly wait on the network and a Thread
+     * per core for each CPU-bound stage.
+     */
+    public ImageStreamStaged(Filter[] filters,
+                             Iterator<List<URL>> urlListIterator,
+                             Runnable completionHook) {
+        this(filters,
+             urlListIterator,
+             completionHook,
+             4 * CORES,
+             CORES,
+             CORES,
+             CORES);
+    }
+
+    /**
+     * Constructor initializes the superclass and data members with
+     * the given number of Threads for each stage.
+     */
+    public ImageStreamStaged(Filter[] filters,
+                             Iterator<List<URL>> urlListIterator,
+                             Runnable completionHook,
+                             int downloadThreads,
+                             int decodeThreads,
+                             int filterThreads,
+                             int storeThreads) {
+        super(filters, urlListIterator, completionHook);
+
+        mDownloadStage = new StageExecutor("download",
+                                           downloadThreads,
+                                           QUEUE_CAPACITY,
+                                           getMetrics());
+        mDecodeStage = new StageExecutor("decode",
+                                         decodeThreads,
+                                         QUEUE_CAPACITY,
+                                         getMetrics());
+        mFilterStage = new StageExecutor("filter",
+                                         filterThreads,
+                                         QUEUE_CAPACITY,
+                                         getMetrics());
+        mStoreStage = new StageExecutor("store",
+                                        storeThreads,
+                                        QUEUE_CAPACITY,
+                                        getMetrics());
+    }
+
+    /**
+     * Initiate the ImageStream processing, which hands each URL to
+     * the download stage and lets each stage pass its results on to
+     * the next one.
+     */
+    @Override
+    protected void initiateStream() {
+        // Remember which cycle these URLs belong to since the next
+        // cycle may start before this one is done.
+        final long cycle = currentCycle();
+
+        // Feed each URL in the input to the download stage, which
+        // blocks this Thread if the download stage is backed up.
+        CompletableFuture<?>[] pipelines = getInput().stream()
+            .map(url -> processUrlAsync(url, cycle))
+            .toArray(CompletableFuture[]::new);
+
+        // This iteration cycle is done when all its pipelines are
+        // done.
+        mCycleDone = CompletableFuture.allOf(pipelines);
+    }
+
+    /**
+     * Returns a CompletableFuture that completes once the image at @a
+     * url has passed through all the stages as part of iteration @a
+     * cycle.
+     */
+    private CompletableFuture<Void> processUrlAsync(URL url,
+                                                    long cycle) {
+        return CompletableFuture
+            // Download stage.
+            .supplyAsync(() -> downloadContent(url),
+                         mDownloadStage)
+            // Decode stage, which decodes the image unless the
+            // filters never touch its pixels.
+            .thenApplyAsync(imageData ->
+                            makeDecodedImageEntity(url, imageData, cycle),
+                            mDecodeStage)
+            // Filter and store stages for each filter.
+            .thenCompose(this::filterImageAsync)
+            // Don't let a failed download or decode of one URL
+            // prevent the rest of the cycle from completing.
+            .exceptionally(ex -> {
+                    PlatformStrategy.instance().errorLog
+                        ("ImageStreamStaged",
+                         "Operations failed on file "
+                         + url
+                         + " with "
+                         + ex);
+                    return null;
+                });
+    }
+
+    /**
+     * Returns a CompletableFuture that completes once each filter in
+     * mFilters has been applied to @a imageEntity and the results
+     * have been stored.
+     */
+    private CompletableFuture<Void> filterImageAsync(ImageEntity imageEntity) {
+        CompletableFuture<?>[] storedImages = mFilters.stream()
+            .map(filter -> CompletableFuture
+                 // Filter stage.
+                 .supplyAsync(() -> {
+                         long start = System.nanoTime();
+                         // An image that's too big to decode whole is
+                         // filtered and stored one tile at a time.
+                         ImageEntity filteredImage = imageEntity.isTiled()
+                             ? TileSet.filter(filter,
+                                              filter.getName(),
+                                              imageEntity)
+                             : filter.filter(imageEntity);
+                         getMetrics().record(StageMetrics.filterStage(filter.getName()),
+                                             start);
+                         return filteredImage;
+                     },
+                     mFilterStage)
+                 // Store stage, which encodes the filtered image and
+                 // writes it to the directory for the filter.  The
+                 // stage has its own Threads already, so the image is
+                 // written here rather than queued.
+                 .thenAcceptAsync(filteredImage -> {
+                         // The tiles of a tiled image are stored
+                         // already.
+                         if (imageEntity.isTiled())
+                             imageEntity.releaseImage();
+                         else {
+                             filteredImage.setSucceeded
+                                 (WriteBehindStore.instance().write
+                                  (filter.getName(),
+                                   filteredImage));
+
+                             // The store released the filtered image,
+                             // and the original isn't needed either.
+                             if (filteredImage != imageEntity
+                                 && filteredImage.getImage() != imageEntity.getImage())
+                                 imageEntity.releaseImage();
+                         }
+
+                         PlatformStrategy.instance().errorLog
+                             ("ImageStreamStaged",
+                              "Operations"
+                              + (filteredImage.getSucceeded() == true
+                                 ? " succeeded"
+                                 : " failed")
+                              + " on file "
+                              + filteredImage.getSourceURL()
+                              + " in cycle "
+                              + filteredImage.getCycle());
+                     },
+                     mStoreStage))
+            .toArray(CompletableFuture[]::new);
+
+        return CompletableFuture.allOf(storedImages);
+    }
+
+    /**
+     * Returns the allOf() completion of the current iteration cycle.
+     * The depth of each stage's queue is recorded in the StageMetrics
+     * as tasks are queued, rather than per cycle, since several
+     * cycles may share the queues at once.
+     */
+    @Override
+    protected CompletableFuture<Void> cycleCompletion() {
+        return mCycleDone;
+    }
+
+    /**
+     * Shutdown each of the stages in pipeline order, after the
+     * superclass shuts down its Executor.
+     */
+    @Override
+    protected void shutdownExecutors() throws InterruptedException {
+        super.shutdownExecutors();
+
+        mDownloadStage.shutdown();
+        mDecodeStage.shutdown();
+        mFilterStage.shutdown();
+        mStoreStage.shutdown();
+    }
+}
@@ -0,0 +1,88 @@
+package example;
+
+import java.net.URL;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import filters.Filter;
+
+/**
+ * @class ImageStreamVirtualThreads
+ *
+ * @brief Customizes ImageStreamCompletableFutureAsync to run each
+ *        download on its own virtual Thread, so the number of
+ *        concurrent downloads is bounded by the number of URLs in a
+ *        cycle rather than by the size of a Thread pool.  Decoding
+ *        and filtering stay on a pool of platform Threads sized to
+ *        the number of cores since they're CPU-bound.
+ */
+public class ImageStreamVirtualThreads
+       extends ImageStreamCompletableFutureAsync {
+    /**
+     * Runs each download on a new virtual Thread.
+     */
+    private final ExecutorService mDownloadExecutor;
+
+    /**
+     * Constructor initializes the superclass and data members.
+     */
+    public ImageStreamVirtualThreads(Filter[] filters,
+                                     Iterator<List<URL>> urlListIterator,
+                                     Runnable completionHook) {
+        super(filters, urlListIterator, completionHook);
+
+        // Replace the superclass's Executor with a pool of platform
+        // Threads sized to the number of cores.
+        setExecutor(Executors.newFixedThreadPool
+                    (Runtime.getRuntime().availableProcessors()));
+
+        mDownloadExecutor = makeVirtualThreadExecutor();
+    }
+
+    /**
+     * Factory method that returns an ExecutorService that starts a
+     * new virtual Thread for each task.  The method is looked up
+     * reflectively so this class still compiles and runs on JDKs that
+     * predate virtual Threads, in which case it falls back to a
+     * cached pool of platform Threads that grows with the number of
+     * concurrent downloads.
+     */
+    private static ExecutorService makeVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                .getMethod("newVirtualThreadPerTaskExecutor")
+                .invoke(null);
+        } catch (ReflectiveOperationException e) {
+            PlatformStrategy.instance().errorLog
+                ("ImageStreamVirtualThreads",
+                 "virtual Threads aren't available, "
+                 + "using a cached Thread pool instead");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Run the downloads on virtual Threads.
+     */
+    @Override
+    protected Executor getDownloadExecutor() {
+        return mDownloadExecutor;
+    }
+
+    /**
+     * Shutdown the download Executor after the superclass shuts down
+     * its Executor.
+     */
+    @Override
+    protected void shutdownExecutors() throws InterruptedException {
+        super.shutdownExecutors();
+
+        mDownloadExecutor.shutdown();
+        mDownloadExecutor.awaitTermination(Long.MAX_VALUE,
+                                           TimeUnit.NANOSECONDS);
+    }
+}
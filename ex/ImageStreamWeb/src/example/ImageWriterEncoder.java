@@ -0,0 +1,169 @@
+package example;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.IndexColorModel;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * @class ImageWriterEncoder
+ *
+ * @brief Encodes a BufferedImage with an ImageIO ImageWriter, which is
+ *        created once and reused for each image, rather than looked
+ *        up by ImageIO.write() every time.  The compressed output is
+ *        buffered in memory instead of in the temporary file ImageIO
+ *        uses by default.
+ */
+class ImageWriterEncoder implements ImageEncoder {
+    /**
+     * The ImageWriter for the format.
+     */
+    private final ImageWriter mWriter;
+
+    /**
+     * The parameters used to write each image, or null to use the
+     * writer's defaults.
+     */
+    private final ImageWriteParam mParam;
+
+    /**
+     * True if the format can't store an alpha channel or a palette,
+     * e.g., JPEG.
+     */
+    private final boolean mOpaque;
+
+    /**
+     * The file name extension of the format.
+     */
+    private final String mExtension;
+
+    /**
+     * Returns an encoder for PNG at the deflate @a level (0-9), or at
+     * the writer's default level if @a level is negative.
+     */
+    static ImageWriterEncoder png(int level) {
+        return new ImageWriterEncoder("png",
+                                      "png",
+                                      level < 0
+                                      ? -1.0F
+                                      // The PNG writer maps quality
+                                      // 1.0 to level 0 and 0.0 to
+                                      // level 9.
+                                      : (9 - Math.min(level, 9)) / 9.0F,
+                                      false);
+    }
+
+    /**
+     * Returns an encoder for JPEG at the @a quality (0-100).
+     */
+    static ImageWriterEncoder jpeg(int quality) {
+        return new ImageWriterEncoder("jpeg",
+                                      "jpg",
+                                      Math.max(0, Math.min(quality, 100)) / 100.0F,
+                                      true);
+    }
+
+    /**
+     * Constructor creates an ImageWriter for @a formatName, whose
+     * files end with @a extension, that writes at the compression @a
+     * quality (between 0.0 and 1.0, or negative for the writer's
+     * default).  @a opaque is true if the format can't store an alpha
+     * channel or a palette.
+     */
+    private ImageWriterEncoder(String formatName,
+                               String extension,
+                               float quality,
+                               boolean opaque) {
+        Iterator<ImageWriter> writers =
+            ImageIO.getImageWritersByFormatName(formatName);
+        if (!writers.hasNext())
+            throw new IllegalArgumentException("no ImageWriter for "
+                                               + formatName);
+        mWriter = writers.next();
+        mOpaque = opaque;
+        mExtension = extension;
+
+        ImageWriteParam param = mWriter.getDefaultWriteParam();
+        if (quality < 0)
+            mParam = null;
+        else if (!param.canWriteCompressed()) {
+            // E.g., the PNG writer before Java 9.
+            PlatformStrategy.instance().log(AsyncLog.Level.WARN,
+                                            "ImageWriterEncoder",
+                                            formatName
+                                            + " compression level isn't supported,"
+                                            + " using the default");
+            mParam = null;
+        } else {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            mParam = param;
+        }
+    }
+
+    /**
+     * Returns the file name extension of the format, e.g., "jpg".
+     */
+    @Override
+    public String getExtension() {
+        return mExtension;
+    }
+
+    /**
+     * Encode the @a image and write it to the @a output.
+     */
+    @Override
+    public void encode(Image image,
+                       OutputStream output) throws IOException {
+        java.awt.image.BufferedImage bufferedImage =
+            ((BufferedImage) image).mBufferedImage;
+
+        if (mOpaque)
+            bufferedImage = opaque(bufferedImage);
+
+        // Closing the ImageOutputStream flushes it but doesn't close
+        // the output.
+        try (ImageOutputStream imageOutput =
+             new MemoryCacheImageOutputStream(output)) {
+            mWriter.setOutput(imageOutput);
+            mWriter.write(null,
+                          new IIOImage(bufferedImage, null, null),
+                          mParam);
+        } finally {
+            // Reset the writer for the next image, even if this one
+            // couldn't be written.
+            mWriter.reset();
+        }
+    }
+
+    /**
+     * Returns the @a image if it's opaque and has no palette, else a
+     * copy without a palette that's drawn over a white background.
+     */
+    private static java.awt.image.BufferedImage opaque(java.awt.image.BufferedImage image) {
+        if (!image.getColorModel().hasAlpha()
+            && !(image.getColorModel() instanceof IndexColorModel))
+            return image;
+
+        java.awt.image.BufferedImage opaqueImage =
+            new java.awt.image.BufferedImage(image.getWidth(),
+                                             image.getHeight(),
+                                             java.awt.image.BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = opaqueImage.createGraphics();
+        try {
+            graphics.drawImage(image, 0, 0, Color.WHITE, null);
+        } finally {
+            graphics.dispose();
+        }
+        return opaqueImage;
+    }
+}
@@ -0,0 +1,130 @@
+package example;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @class LatencyHistogram
+ *
+ * @brief Records latencies in nanoseconds without locking, so many
+ *        Threads can record into the same histogram at once.  The
+ *        buckets are log-linear: each power of two is split into
+ *        SUB_BUCKETS equal buckets, so a percentile is reported to
+ *        within about 3% of the recorded value.
+ */
+public class LatencyHistogram {
+    /**
+     * The log2 of the number of buckets per power of two.
+     */
+    private static final int SUB_BUCKET_BITS = 5;
+
+    /**
+     * The number of buckets per power of two.
+     */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * The number of values recorded in each bucket.
+     */
+    private final AtomicLongArray mBuckets =
+        new AtomicLongArray((64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+
+    /**
+     * The number of values recorded.
+     */
+    private final AtomicLong mCount = new AtomicLong(0);
+
+    /**
+     * The sum of the values recorded.
+     */
+    private final AtomicLong mSum = new AtomicLong(0);
+
+    /**
+     * The largest value recorded.
+     */
+    private final AtomicLong mMax = new AtomicLong(0);
+
+    /**
+     * Record a latency of @a nanos nanoseconds.
+     */
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+
+        mBuckets.incrementAndGet(bucket(nanos));
+        mCount.incrementAndGet();
+        mSum.addAndGet(nanos);
+        mMax.accumulateAndGet(nanos, Math::max);
+    }
+
+    /**
+     * Returns the number of values recorded.
+     */
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * Returns the mean of the values recorded, in nanoseconds.
+     */
+    public long getMean() {
+        long count = mCount.get();
+        return count == 0 ? 0 : mSum.get() / count;
+    }
+
+    /**
+     * Returns the largest value recorded, in nanoseconds.
+     */
+    public long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     * Returns the @a percentile (between 0 and 100) of the values
+     * recorded, in nanoseconds, or 0 if nothing was recorded.
+     */
+    public long getPercentile(double percentile) {
+        long count = mCount.get();
+        if (count == 0)
+            return 0;
+
+        // The rank of the value in the percentile, starting at 1.
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+
+        for (int bucket = 0; bucket < mBuckets.length(); ++bucket) {
+            seen += mBuckets.get(bucket);
+            if (seen >= rank)
+                return Math.min(highestValue(bucket), getMax());
+        }
+
+        // Values recorded while the buckets were being read.
+        return getMax();
+    }
+
+    /**
+     * Returns the bucket for @a value.
+     */
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket =
+            (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Returns the highest value in the @a bucket.
+     */
+    private static long highestValue(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest =
+            (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
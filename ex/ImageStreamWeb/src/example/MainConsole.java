@@ -20,9 +20,14 @@ public class MainConsole {
      * Enumerate the tests to run.
      */
     enum TestsToRun {
-        SEQUENTIAL_STREAM, // Uses a Java 8 sequential stream.
-        PARALLEL_STREAM,   // Uses a Java 8 parallel stream.
-        COMPLETABLE_FUTURE // Uses Java 8 CompletableFutures.
+        SEQUENTIAL_STREAM,        // Uses a Java 8 sequential stream.
+        PARALLEL_STREAM,          // Uses a Java 8 parallel stream.
+        COMPLETABLE_FUTURE,       // Uses Java 8 CompletableFutures.
+        COMPLETABLE_FUTURE_ASYNC, // Uses non-blocking Java 8
+                                  // CompletableFutures.
+        STAGED,                   // Uses a staged pipeline with a
+                                  // separate pool for each stage.
+        VIRTUAL_THREADS           // Uses virtual Threads for downloads.
     }
 
     /**
@@ -78,12 +83,21 @@ public class MainConsole {
             long start = System.nanoTime();
 
             // Call the makeImageStream() factory method to create the
-            // designated ImageStream and then run it in a separate
-            // Thread.
-            new Thread(makeImageStream(FILTERS, 
-                                       urlIterator,
-                                       completionHook,
-                                       test)).start();
+            // designated ImageStream.
+            ImageStream imageStream = makeImageStream(FILTERS, 
+                                                      urlIterator,
+                                                      completionHook,
+                                                      test);
+
+            // Report when each iteration cycle is done.
+            if (Options.instance().diagnosticsEnabled())
+                imageStream.setCycleCompletionHook
+                    (cycle -> PlatformStrategy.instance().errorLog
+                     ("MainConsole",
+                      "cycle " + cycle + " of " + test + " is done"));
+
+            // Run the ImageStream in a separate Thread.
+            new Thread(imageStream).start();
 
             try {
                 // Barrier synchronizer that wait for the ImageStream
@@ -104,6 +118,21 @@ public class MainConsole {
                                                  + " msecs");
         }
 
+        // Report how effective the caches were.
+        if (Options.instance().diagnosticsEnabled()) {
+            PlatformStrategy.instance().errorLog("MainConsole",
+                                                 "download cache hits = "
+                                                 + DownloadCache.instance().getHits()
+                                                 + ", misses = "
+                                                 + DownloadCache.instance().getMisses());
+            PlatformStrategy.instance().errorLog("MainConsole",
+                                                 "decoded image cache "
+                                                 + DecodedImageCache.instance());
+            PlatformStrategy.instance().errorLog("MainConsole",
+                                                 "pixel buffer pool "
+                                                 + PixelBufferPool.instance());
+        }
+
         PlatformStrategy.instance().errorLog("MainConsole", 
                                              "Ending all the tests");
     }
@@ -111,10 +140,10 @@ public class MainConsole {
     /**
      * Factory method that creates the designated ImageStream.
      */
-    private static ImageStream makeImageStream(Filter[] filters,
-                                               Iterator<List<URL>> urlIterator,
-                                               Runnable completionHook,
-                                               TestsToRun choice) {
+    static ImageStream makeImageStream(Filter[] filters,
+                                       Iterator<List<URL>> urlIterator,
+                                       Runnable completionHook,
+                                       TestsToRun choice) {
         switch(choice) {
         case SEQUENTIAL_STREAM:
             return new ImageStreamSequential(filters,
@@ -128,6 +157,18 @@ public class MainConsole {
             return new ImageStreamCompletableFuture(filters,
                                                     urlIterator,
                                                     completionHook);
+        case COMPLETABLE_FUTURE_ASYNC:
+            return new ImageStreamCompletableFutureAsync(filters,
+                                                         urlIterator,
+                                                         completionHook);
+        case STAGED:
+            return new ImageStreamStaged(filters,
+                                         urlIterator,
+                                         completionHook);
+        case VIRTUAL_THREADS:
+            return new ImageStreamVirtualThreads(filters,
+                                                 urlIterator,
+                                                 completionHook);
         }
         return null;
     }
@@ -0,0 +1,114 @@
+package example;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * @class ManagedBlocking
+ *
+ * @brief Runs blocking calls (e.g., network reads and file writes)
+ *        as a ForkJoinPool.ManagedBlocker when they're made on a
+ *        ForkJoinPool worker Thread, e.g., from a parallel stream.
+ *        The pool can then add a compensating Thread while the
+ *        worker is blocked, so blocked workers don't stall the other
+ *        tasks in the pool, which for the common pool includes every
+ *        other parallel stream in the JVM.  On any other Thread the
+ *        call is simply made directly.
+ */
+public final class ManagedBlocking {
+    /**
+     * A blocking call that returns a result of type @a T and may
+     * throw an exception of type @a X.
+     */
+    @FunctionalInterface
+    public interface Call<T, X extends Exception> {
+        T call() throws X;
+    }
+
+    /**
+     * A blocking action that may throw an exception of type @a X.
+     */
+    @FunctionalInterface
+    public interface Action<X extends Exception> {
+        void run() throws X;
+    }
+
+    /**
+     * Adapts a Call to the ManagedBlocker interface, keeping its
+     * result or the exception it threw.
+     */
+    private static class Blocker<T, X extends Exception>
+        implements ForkJoinPool.ManagedBlocker {
+        private final Call<T, X> mCall;
+        private boolean mDone;
+        private T mResult;
+        private Throwable mFailure;
+
+        Blocker(Call<T, X> call) {
+            mCall = call;
+        }
+
+        @Override
+        public boolean block() {
+            try {
+                mResult = mCall.call();
+            } catch (Throwable t) {
+                mFailure = t;
+            }
+            mDone = true;
+            return true;
+        }
+
+        @Override
+        public boolean isReleasable() {
+            return mDone;
+        }
+    }
+
+    /**
+     * Make the blocking @a call and return its result, letting the
+     * ForkJoinPool compensate for the blocked worker if it's made on
+     * one.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T, X extends Exception> T call(Call<T, X> call) throws X {
+        if (!ForkJoinTask.inForkJoinPool())
+            return call.call();
+
+        Blocker<T, X> blocker = new Blocker<>(call);
+        try {
+            ForkJoinPool.managedBlock(blocker);
+        } catch (InterruptedException e) {
+            // Only thrown by block(), which catches everything the
+            // call throws, so just keep the interrupt status.
+            Thread.currentThread().interrupt();
+        }
+
+        if (blocker.mFailure instanceof RuntimeException)
+            throw (RuntimeException) blocker.mFailure;
+        else if (blocker.mFailure instanceof Error)
+            throw (Error) blocker.mFailure;
+        else if (blocker.mFailure != null)
+            // The call can only throw checked exceptions of type X.
+            throw (X) blocker.mFailure;
+
+        return blocker.mResult;
+    }
+
+    /**
+     * Run the blocking @a action, letting the ForkJoinPool compensate
+     * for the blocked worker if it's run on one.
+     */
+    public static <X extends Exception> void run(Action<X> action) throws X {
+        ManagedBlocking.<Void, X>call(() -> {
+                action.run();
+                return null;
+            });
+    }
+
+    /**
+     * Make the constructor private for a utility class.
+     */
+    private ManagedBlocking() {
+    }
+}
@@ -27,6 +27,140 @@ public class Options {
      */
     private String mInputSource = "DEFAULT";
 
+    /**
+     * The maximum number of iteration cycles that can be processed
+     * at once.  Defaults to 1, i.e., cycles don't overlap.
+     */
+    private int mMaxCyclesInFlight = 1;
+
+    /**
+     * The number of Threads in the pool each ImageStream processes
+     * images with.  Defaults to 8.
+     */
+    private int mPoolThreads = 8;
+
+    /**
+     * The number of Threads in the ForkJoinPool each ImageStream runs
+     * its parallel streams in.  Defaults to 0, i.e., they run in the
+     * common pool.
+     */
+    private int mForkJoinPoolThreads = 0;
+
+    /**
+     * The number of megabytes of downloaded images to cache in
+     * memory.  Defaults to 64; 0 disables the download cache.
+     */
+    private int mDownloadCacheMegabytes = 64;
+
+    /**
+     * The number of megabytes of downloaded images to cache on disk.
+     * Defaults to 512; the least recently used entries are deleted
+     * once the cache outgrows it.
+     */
+    private int mDownloadCacheDiskMegabytes = 512;
+
+    /**
+     * The number of megabytes of decoded images to cache in memory.
+     * Defaults to 64; 0 disables the decoded image cache.
+     */
+    private int mDecodedCacheMegabytes = 64;
+
+    /**
+     * The number of megabytes of idle pixel buffers to keep for
+     * reuse.  Defaults to 64; 0 disables pooling.
+     */
+    private int mPixelBufferPoolMegabytes = 64;
+
+    /**
+     * The number of Threads that store the filtered images in the
+     * background.  Defaults to 2; 0 stores each image on the Thread
+     * that filtered it.
+     */
+    private int mStoreThreads = 2;
+
+    /**
+     * When the stored images are synced to disk.  Defaults to NONE,
+     * i.e., it's left to the operating system.
+     */
+    private WriteBehindStore.FsyncPolicy mFsyncPolicy =
+        WriteBehindStore.FsyncPolicy.NONE;
+
+    /**
+     * The format the filtered images are stored in.  Defaults to PNG.
+     */
+    private ImageEncoder.Format mImageEncoderFormat =
+        ImageEncoder.Format.PNG;
+
+    /**
+     * The deflate level (0-9) of PNG images.  Defaults to -1, i.e.,
+     * the encoder's default level.
+     */
+    private int mPngDeflateLevel = -1;
+
+    /**
+     * The quality (0-100) of JPEG images.  Defaults to 75.
+     */
+    private int mJpegQuality = 75;
+
+    /**
+     * How the stored images are laid out on disk.  Defaults to FILES,
+     * i.e., one file per image.
+     */
+    private WriteBehindStore.Layout mStoreLayout =
+        WriteBehindStore.Layout.FILES;
+
+    /**
+     * The format the metrics of each ImageStream are logged in when
+     * it's done.  Defaults to NONE, i.e., they aren't logged.
+     */
+    private MetricsFormat mMetricsFormat = MetricsFormat.NONE;
+
+    /**
+     * Messages below this level aren't logged.  Defaults to INFO.
+     */
+    private AsyncLog.Level mLogLevel = AsyncLog.Level.INFO;
+
+    /**
+     * Only one in every this many messages below WARN from the same
+     * source is logged.  Defaults to 1, i.e., every message.
+     */
+    private int mLogSampleRate = 1;
+
+    /**
+     * The size, in pixels, the images are decoded to at the least,
+     * by sampling their rows and columns.  Defaults to 0 by 0, i.e.,
+     * they're decoded at full size; 0 leaves that dimension
+     * unconstrained.
+     */
+    private int mTargetWidth = 0;
+    private int mTargetHeight = 0;
+
+    /**
+     * The width and height, in pixels, of the tiles that images
+     * bigger than one tile are decoded, filtered, and stored as (see
+     * TileSet).  Defaults to 0, i.e., images are never tiled.
+     */
+    private int mTileSize = 0;
+
+    /**
+     * Controls whether the images are converted to packed int pixels
+     * (TYPE_INT_RGB or TYPE_INT_ARGB) when they're decoded (defaults
+     * to false).
+     */
+    private boolean mIntRastersEnabled = false;
+
+    /**
+     * Controls whether images whose pixels weren't changed are stored
+     * as the bytes they were downloaded as (defaults to false).
+     */
+    private boolean mPassthroughEnabled = false;
+
+    /**
+     * Controls whether images are decoded straight from the network
+     * stream as they're downloaded (defaults to false).
+     */
+    private boolean mStreamingDecodeEnabled = false;
+
     /**
      * Controls whether debugging output will be generated (defaults
      * to false).
@@ -65,6 +199,179 @@ public class Options {
 		return mInputSource;
 	}
 
+    /**
+     * Return the maximum number of iteration cycles that can be
+     * processed at once.
+     */
+    public int getMaxCyclesInFlight() {
+        return mMaxCyclesInFlight;
+    }
+
+    /**
+     * Return the number of Threads in the pool each ImageStream
+     * processes images with.
+     */
+    public int getPoolThreads() {
+        return mPoolThreads;
+    }
+
+    /**
+     * Return the number of Threads in the ForkJoinPool each
+     * ImageStream runs its parallel streams in, or 0 if they run in
+     * the common pool.
+     */
+    public int getForkJoinPoolThreads() {
+        return mForkJoinPoolThreads;
+    }
+
+    /**
+     * Return the number of bytes of downloaded images to cache in
+     * memory, or 0 if downloads aren't cached.
+     */
+    public long getDownloadCacheSize() {
+        return mDownloadCacheMegabytes * 1024L * 1024L;
+    }
+
+    /**
+     * Return the number of bytes of downloaded images to cache on
+     * disk.
+     */
+    public long getDownloadCacheDiskSize() {
+        return mDownloadCacheDiskMegabytes * 1024L * 1024L;
+    }
+
+    /**
+     * Return the number of bytes of decoded images to cache in
+     * memory, or 0 if decoded images aren't cached.
+     */
+    public long getDecodedCacheSize() {
+        return mDecodedCacheMegabytes * 1024L * 1024L;
+    }
+
+    /**
+     * Return the number of bytes of idle pixel buffers to keep for
+     * reuse, or 0 if pixel buffers aren't pooled.
+     */
+    public long getPixelBufferPoolSize() {
+        return mPixelBufferPoolMegabytes * 1024L * 1024L;
+    }
+
+    /**
+     * Return the number of Threads that store the filtered images in
+     * the background, or 0 if they're stored on the Thread that
+     * filtered them.
+     */
+    public int getStoreThreads() {
+        return mStoreThreads;
+    }
+
+    /**
+     * Return when the stored images are synced to disk.
+     */
+    public WriteBehindStore.FsyncPolicy getFsyncPolicy() {
+        return mFsyncPolicy;
+    }
+
+    /**
+     * Return the format the filtered images are stored in.
+     */
+    public ImageEncoder.Format getImageEncoderFormat() {
+        return mImageEncoderFormat;
+    }
+
+    /**
+     * Return the deflate level (0-9) of PNG images, or -1 for the
+     * encoder's default level.
+     */
+    public int getPngDeflateLevel() {
+        return mPngDeflateLevel;
+    }
+
+    /**
+     * Return the quality (0-100) of JPEG images.
+     */
+    public int getJpegQuality() {
+        return mJpegQuality;
+    }
+
+    /**
+     * Return how the stored images are laid out on disk.
+     */
+    public WriteBehindStore.Layout getStoreLayout() {
+        return mStoreLayout;
+    }
+
+    /**
+     * Return the format the metrics of each ImageStream are logged in
+     * when it's done.
+     */
+    public MetricsFormat getMetricsFormat() {
+        return mMetricsFormat;
+    }
+
+    /**
+     * Return the level below which messages aren't logged.
+     */
+    public AsyncLog.Level getLogLevel() {
+        return mLogLevel;
+    }
+
+    /**
+     * Return how many messages below WARN from the same source are
+     * logged, i.e., one in every so many.
+     */
+    public int getLogSampleRate() {
+        return mLogSampleRate;
+    }
+
+    /**
+     * Return the width the images are decoded to at the least, or 0
+     * if it's not constrained.
+     */
+    public int getTargetWidth() {
+        return mTargetWidth;
+    }
+
+    /**
+     * Return the height the images are decoded to at the least, or 0
+     * if it's not constrained.
+     */
+    public int getTargetHeight() {
+        return mTargetHeight;
+    }
+
+    /**
+     * Return the width and height of the tiles that images bigger
+     * than one tile are processed as, or 0 if images aren't tiled.
+     */
+    public int getTileSize() {
+        return mTileSize;
+    }
+
+    /**
+     * Returns whether the images are converted to packed int pixels
+     * when they're decoded.
+     */
+    public boolean intRastersEnabled() {
+        return mIntRastersEnabled;
+    }
+
+    /**
+     * Returns whether images whose pixels weren't changed are stored
+     * as the bytes they were downloaded as.
+     */
+    public boolean passthroughEnabled() {
+        return mPassthroughEnabled;
+    }
+
+    /**
+     * Returns whether images are decoded straight from the network
+     * stream as they're downloaded.
+     */
+    public boolean streamingDecodeEnabled() {
+        return mStreamingDecodeEnabled;
+    }
+
     /**
      * Returns whether debugging output is generated.
      */
@@ -78,14 +385,67 @@ public class Options {
     public boolean parseArgs(String argv[]) {
         if (argv != null) {
             for (int argc = 0; argc < argv.length; argc += 2)
-                if (argv[argc].equals("-f"))
+                if (argv[argc].equals("-a"))
+                    mIntRastersEnabled = argv[argc + 1].equals("true");
+                else if (argv[argc].equals("-e"))
+                    mImageEncoderFormat =
+                        ImageEncoder.Format.valueOf(argv[argc + 1].toUpperCase());
+                else if (argv[argc].equals("-f"))
                     mPathname = argv[argc + 1];
                 else if (argv[argc].equals("-d"))
                     mDiagnosticsEnabled = argv[argc + 1].equals("true");
+                else if (argv[argc].equals("-l"))
+                    mLogLevel =
+                        AsyncLog.Level.valueOf(argv[argc + 1].toUpperCase());
+                else if (argv[argc].equals("-m"))
+                    mMetricsFormat =
+                        MetricsFormat.valueOf(argv[argc + 1].toUpperCase());
+                else if (argv[argc].equals("-n"))
+                    mPoolThreads = Integer.parseInt(argv[argc + 1]);
+                else if (argv[argc].equals("-o"))
+                    mStoreLayout =
+                        WriteBehindStore.Layout.valueOf(argv[argc + 1].toUpperCase());
+                else if (argv[argc].equals("-p"))
+                    mPassthroughEnabled = argv[argc + 1].equals("true");
+                else if (argv[argc].equals("-q"))
+                    mJpegQuality = Integer.parseInt(argv[argc + 1]);
+                else if (argv[argc].equals("-r"))
+                    mLogSampleRate = Integer.parseInt(argv[argc + 1]);
                 else if (argv[argc].equals("-s"))
                 	mSeparator = argv[argc + 1];
+                else if (argv[argc].equals("-g"))
+                    mStreamingDecodeEnabled = argv[argc + 1].equals("true");
                 else if (argv[argc].equals("-i"))
                 	mInputSource = argv[argc + 1];
+                else if (argv[argc].equals("-b"))
+                    mPixelBufferPoolMegabytes = Integer.parseInt(argv[argc + 1]);
+                else if (argv[argc].equals("-c"))
+                    mDownloadCacheMegabytes = Integer.parseInt(argv[argc + 1]);
+                else if (argv[argc].equals("-j"))
+                    mForkJoinPoolThreads = Integer.parseInt(argv[argc + 1]);
+                else if (argv[argc].equals("-k"))
+                    mDecodedCacheMegabytes = Integer.parseInt(argv[argc + 1]);
+                else if (argv[argc].equals("-t"))
+                    mStoreThreads = Integer.parseInt(argv[argc + 1]);
+                else if (argv[argc].equals("-u"))
+                    mTileSize = Integer.parseInt(argv[argc + 1]);
+                else if (argv[argc].equals("-v"))
+                    mDownloadCacheDiskMegabytes = Integer.parseInt(argv[argc + 1]);
+                else if (argv[argc].equals("-w"))
+                    mMaxCyclesInFlight = Integer.parseInt(argv[argc + 1]);
+                else if (argv[argc].equals("-x")) {
+                    // E.g., "250x250", or "250" for a square.
+                    String[] size = argv[argc + 1].toLowerCase().split("x");
+                    mTargetWidth = Integer.parseInt(size[0]);
+                    mTargetHeight = size.length > 1
+                        ? Integer.parseInt(size[1])
+                        : mTargetWidth;
+                }
+                else if (argv[argc].equals("-y"))
+                    mFsyncPolicy =
+                        WriteBehindStore.FsyncPolicy.valueOf(argv[argc + 1].toUpperCase());
+                else if (argv[argc].equals("-z"))
+                    mPngDeflateLevel = Integer.parseInt(argv[argc + 1]);
                 else {
                     printUsage();
                     return false;
@@ -104,11 +464,41 @@ public class Options {
         System.out.println("");
 
         System.out.println("Usage: ");
+        System.out.println("-a decode-to-int-rasters [true|false]");
+        System.out.println("-b pixel-buffer-pool-megabytes (0 disables)");
+        System.out.println("-c download-cache-megabytes (0 disables)");
         System.out.println("-d [true|false]");
+        System.out.println("-e image-encoder [ PNG | JPEG | RAW | SOURCE ]");
         System.out.println("-f URL-file-pathame");
+        System.out.println("-g decode-while-downloading [true|false]");
         System.out.println("-h: invoke help");
         System.out.println("-i: URL-list-input-source [ DEFAULT | USER | FILE ]");
+        System.out.println("-j fork-join-pool-threads (0 uses the common pool)");
+        System.out.println("-k decoded-image-cache-megabytes (0 disables)");
+        System.out.println("-l log-level [ DEBUG | INFO | WARN | ERROR | OFF ]");
+        System.out.println("-m metrics-format [ NONE | CSV | JSON ]");
+        System.out.println("-n pool-threads");
+        System.out.println("-o store-layout [ FILES | SEGMENTS ]");
+        System.out.println("-p passthrough-unchanged-images [true|false]");
+        System.out.println("-q jpeg-quality (0-100)");
+        System.out.println("-r log-sample-rate (log 1 in N messages below WARN)");
         System.out.println("-s URL-list-separator");
+        System.out.println("-t store-threads (0 stores on the filter thread)");
+        System.out.println("-u tile-size (0 disables tiling)");
+        System.out.println("-v download-cache-disk-megabytes");
+        System.out.println("-w max-cycles-in-flight");
+        System.out.println("-x target-size WIDTHxHEIGHT (0x0 decodes at full size)");
+        System.out.println("-y fsync-policy [ NONE | EACH_FILE | ON_FLUSH ]");
+        System.out.println("-z png-deflate-level (0-9)");
+    }
+
+    /**
+     * The formats the metrics of an ImageStream can be logged in.
+     */
+    public static enum MetricsFormat {
+        NONE,
+        CSV,
+        JSON
     }
 
     /**
@@ -0,0 +1,321 @@
+package example;
+
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @class PixelBufferPool
+ *
+ * @brief Recycles the int[] and byte[] arrays that hold the pixels of
+ *        decoded and filtered images, which are several megabytes
+ *        each and would otherwise be allocated directly in the old
+ *        generation and collected in long GC pauses.  The arrays are
+ *        grouped in size classes that are a quarter of a power of
+ *        two apart, so a borrowed array is at most 25% bigger than
+ *        requested.  An array is returned to the pool once the last
+ *        reference to the Image holding it is released (see
+ *        Image.release()).  The pool keeps up to the configured
+ *        number of bytes of idle arrays and lets the garbage
+ *        collector reclaim the rest.  The arrays are on the Java heap
+ *        since a Java BufferedImage can't be backed by an off-heap
+ *        ByteBuffer.  This class is a singleton.
+ */
+public class PixelBufferPool {
+    /**
+     * The singleton @a PixelBufferPool instance.
+     */
+    private static PixelBufferPool sUniqueInstance = null;
+
+    /**
+     * Arrays with fewer elements than this are cheap to allocate, so
+     * they aren't pooled.
+     */
+    private static final int MIN_POOLED_LENGTH = 64 * 1024;
+
+    /**
+     * The idle int[] arrays, keyed by their size class.
+     */
+    private final ConcurrentHashMap<Integer, Deque<int[]>> mInts =
+        new ConcurrentHashMap<>();
+
+    /**
+     * The idle byte[] arrays, keyed by their size class.
+     */
+    private final ConcurrentHashMap<Integer, Deque<byte[]>> mBytes =
+        new ConcurrentHashMap<>();
+
+    /**
+     * The maximum number of bytes of idle arrays kept in the pool,
+     * or 0 if pooling is disabled.
+     */
+    private final long mMaxPooledBytes;
+
+    /**
+     * The number of bytes of idle arrays in the pool.
+     */
+    private final AtomicLong mPooledBytes = new AtomicLong(0);
+
+    /**
+     * The arrays borrowed from the pool and not returned yet.  Arrays
+     * are compared by identity and are weakly referenced, so an array
+     * whose Image is dropped without being released is still
+     * reclaimed by the garbage collector.
+     */
+    private final Map<Object, Boolean> mOutstanding =
+        Collections.synchronizedMap(new WeakHashMap<>());
+
+    /**
+     * The number of arrays requested from the pool.
+     */
+    private final AtomicLong mRequests = new AtomicLong(0);
+
+    /**
+     * The number of requests served with an idle array.
+     */
+    private final AtomicLong mHits = new AtomicLong(0);
+
+    /**
+     * Method to return the one and only singleton instance.
+     */
+    public static synchronized PixelBufferPool instance() {
+        if (sUniqueInstance == null)
+            sUniqueInstance =
+                new PixelBufferPool(Options.instance().getPixelBufferPoolSize());
+
+        return sUniqueInstance;
+    }
+
+    /**
+     * Constructor initializes the data member so the pool keeps up to
+     * @a maxPooledBytes of idle arrays.
+     */
+    private PixelBufferPool(long maxPooledBytes) {
+        mMaxPooledBytes = maxPooledBytes;
+    }
+
+    /**
+     * Returns a DataBufferInt with room for @a size elements.  Its
+     * contents are undefined, so it must be completely overwritten
+     * unless @a clear is true.
+     */
+    public DataBufferInt borrowInts(int size,
+                                    boolean clear) {
+        int length = sizeClass(size);
+        int[] array = poll(mInts, length);
+
+        if (array == null)
+            array = new int[length];
+        else if (clear)
+            Arrays.fill(array, 0);
+
+        mOutstanding.put(array, Boolean.TRUE);
+        return new DataBufferInt(array, size);
+    }
+
+    /**
+     * Returns a DataBufferByte with room for @a size elements.  Its
+     * contents are undefined, so it must be completely overwritten
+     * unless @a clear is true.
+     */
+    public DataBufferByte borrowBytes(int size,
+                                      boolean clear) {
+        int length = sizeClass(size);
+        byte[] array = poll(mBytes, length);
+
+        if (array == null)
+            array = new byte[length];
+        else if (clear)
+            Arrays.fill(array, (byte) 0);
+
+        mOutstanding.put(array, Boolean.TRUE);
+        return new DataBufferByte(array, size);
+    }
+
+    /**
+     * Returns a new Java BufferedImage with the given @a colorModel
+     * and @a sampleModel whose pixels are held in a pooled array, or
+     * null if the layout isn't one whose arrays are pooled (i.e., one
+     * packed int per pixel or interleaved bytes).  The contents are
+     * undefined, so they must be completely overwritten unless @a
+     * clear is true.
+     */
+    public java.awt.image.BufferedImage borrowImage(ColorModel colorModel,
+                                                    SampleModel sampleModel,
+                                                    boolean clear) {
+        DataBuffer dataBuffer;
+        int height = sampleModel.getHeight();
+
+        if (sampleModel instanceof SinglePixelPackedSampleModel
+            && sampleModel.getDataType() == DataBuffer.TYPE_INT)
+            dataBuffer =
+                borrowInts(((SinglePixelPackedSampleModel) sampleModel)
+                           .getScanlineStride() * height,
+                           clear);
+        else if (sampleModel instanceof PixelInterleavedSampleModel
+                 && sampleModel.getDataType() == DataBuffer.TYPE_BYTE)
+            dataBuffer =
+                borrowBytes(((PixelInterleavedSampleModel) sampleModel)
+                            .getScanlineStride() * height,
+                            clear);
+        else
+            return null;
+
+        return new java.awt.image.BufferedImage
+            (colorModel,
+             Raster.createWritableRaster(sampleModel, dataBuffer, null),
+             colorModel.isAlphaPremultiplied(),
+             null);
+    }
+
+    /**
+     * Return the array behind the @a dataBuffer to the pool.  The
+     * caller must guarantee that nothing uses the array any more.
+     * Arrays that weren't borrowed from the pool, or that were
+     * already returned, are ignored.
+     */
+    public void recycle(DataBuffer dataBuffer) {
+        if (dataBuffer instanceof DataBufferInt) {
+            int[] array = ((DataBufferInt) dataBuffer).getData();
+            if (mOutstanding.remove(array) != null
+                && isSizeClass(array.length))
+                offer(mInts, array, array.length);
+        } else if (dataBuffer instanceof DataBufferByte) {
+            byte[] array = ((DataBufferByte) dataBuffer).getData();
+            if (mOutstanding.remove(array) != null
+                && isSizeClass(array.length))
+                offer(mBytes, array, array.length);
+        }
+    }
+
+    /**
+     * Returns the fraction of requests served with an idle array.
+     */
+    public double getHitRate() {
+        long requests = mRequests.get();
+        return requests == 0
+            ? 0.0
+            : (double) mHits.get() / requests;
+    }
+
+    /**
+     * Returns the number of bytes of arrays borrowed from the pool
+     * and not returned yet.
+     */
+    public long getOutstandingBytes() {
+        synchronized (mOutstanding) {
+            long bytes = 0;
+            for (Object array : mOutstanding.keySet())
+                bytes += bytes(array);
+            return bytes;
+        }
+    }
+
+    /**
+     * Returns the number of bytes of idle arrays in the pool.
+     */
+    public long getPooledBytes() {
+        return mPooledBytes.get();
+    }
+
+    /**
+     * Returns a summary of the pool's counters.
+     */
+    @Override
+    public String toString() {
+        return "requests = " + mRequests.get()
+            + ", hit rate = " + String.format("%.2f", getHitRate())
+            + ", outstanding bytes = " + getOutstandingBytes()
+            + ", pooled bytes = " + getPooledBytes();
+    }
+
+    /**
+     * Returns an idle array of @a length elements from @a arrays, or
+     * null if there isn't one.
+     */
+    private <T> T poll(ConcurrentHashMap<Integer, Deque<T>> arrays,
+                       int length) {
+        if (!isSizeClass(length))
+            return null;
+
+        mRequests.incrementAndGet();
+
+        Deque<T> sizeClass = arrays.get(length);
+        T array = sizeClass == null
+            ? null
+            : sizeClass.pollFirst();
+
+        if (array != null) {
+            mHits.incrementAndGet();
+            mPooledBytes.addAndGet(-bytes(array));
+        }
+        return array;
+    }
+
+    /**
+     * Add the @a array of @a length elements to @a arrays unless the
+     * pool is full.
+     */
+    private <T> void offer(ConcurrentHashMap<Integer, Deque<T>> arrays,
+                           T array,
+                           int length) {
+        long bytes = bytes(array);
+
+        // Reserve room for the array, or leave it to the garbage
+        // collector if the pool is full.
+        if (mPooledBytes.addAndGet(bytes) > mMaxPooledBytes) {
+            mPooledBytes.addAndGet(-bytes);
+            return;
+        }
+
+        // The most recently used array is handed out first since
+        // it's the most likely to still be in the CPU caches.
+        arrays.computeIfAbsent(length,
+                               key -> new ConcurrentLinkedDeque<>())
+            .offerFirst(array);
+    }
+
+    /**
+     * Returns the number of bytes the @a array occupies.
+     */
+    private static long bytes(Object array) {
+        return array instanceof int[]
+            ? 4L * ((int[]) array).length
+            : ((byte[]) array).length;
+    }
+
+    /**
+     * Returns the number of elements of the arrays in the size class
+     * for @a size elements, i.e., @a size rounded up to a quarter of
+     * the power of two below it.
+     */
+    private static int sizeClass(int size) {
+        if (size < MIN_POOLED_LENGTH)
+            return size;
+
+        int powerOfTwo = Integer.highestOneBit(size - 1);
+        int step = powerOfTwo >>> 2;
+        return (size + step - 1) / step * step;
+    }
+
+    /**
+     * Returns true if @a length is the length of a size class.
+     */
+    private static boolean isSizeClass(int length) {
+        return length >= MIN_POOLED_LENGTH
+            && sizeClass(length) == length;
+    }
+}
@@ -2,12 +2,20 @@ package example;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import filters.PixelKernel;
 
 /** 
  * @class PlatformStrategy
@@ -26,6 +34,13 @@ public abstract class PlatformStrategy {
      */
     private static PlatformStrategy sUniqueInstance = null;
 
+    /**
+     * The ImageEncoders made for each Thread, so each encoder is
+     * reused for all the images stored by the Thread.
+     */
+    private final ThreadLocal<Map<ImageEncoder.Format, ImageEncoder>> mImageEncoders =
+        ThreadLocal.withInitial(() -> new EnumMap<>(ImageEncoder.Format.class));
+
     /** 
      * Method to return the one and only singleton instance. 
      */
@@ -79,7 +94,9 @@ public abstract class PlatformStrategy {
         // Store the image using try-with-resources
         try (FileOutputStream outputFile =
                 new FileOutputStream(imageFile)) {
-           PlatformStrategy.instance().storeImage(image, outputFile);
+           PlatformStrategy.instance().storeImage(image,
+                                                  ImageEntity.getFormatName(fileName),
+                                                  outputFile);
         }
         catch (Exception e) {
 	       e.printStackTrace();
@@ -90,9 +107,33 @@ public abstract class PlatformStrategy {
 	}
 
     /**
-     * Factory method that creates an @a Image from a byte array.
+     * Queue the image of the @a imageEntity to be stored in its file
+     * in the directory @a pathName without waiting for it to be
+     * written.  The imageEntity's reference to its image is released
+     * once it's stored.  Returns a CompletableFuture that completes
+     * with true if the image was stored, else false.
+     */
+    public CompletableFuture<Boolean> storeExternalImageAsync(String pathName,
+                                                              ImageEntity imageEntity) {
+        return WriteBehindStore.instance().store(pathName,
+                                                 imageEntity);
+    }
+
+    /**
+     * Factory method that creates an @a Image from a byte array in
+     * the format @a formatName (e.g., "png" or "jpg"), which is a
+     * hint that may be null or wrong.
+     */
+    public abstract Image makeImage(byte[] imageData,
+                                    String formatName);
+
+    /**
+     * Factory method that creates an @a Image by decoding it straight
+     * from the @a imageStream, e.g., as it's downloaded, in the format
+     * @a formatName, which is a hint that may be null or wrong.
      */
-    public abstract Image makeImage(byte[] imageData);
+    public abstract Image makeImage(InputStream imageStream,
+                                    String formatName) throws IOException;
 
     /**
      * Apply a grayscale filter to the @a imageEntity and return it.
@@ -100,17 +141,61 @@ public abstract class PlatformStrategy {
     public abstract ImageEntity grayScaleFilter(ImageEntity imageEntity);
 
     /**
-     * Store the @a image in the given @outputFile.
+     * Apply the point-wise @a kernel to each pixel of the @a
+     * imageEntity in a single pass and return the result.
+     */
+    public abstract ImageEntity applyPixelKernel(ImageEntity imageEntity,
+                                                 PixelKernel kernel);
+
+    /**
+     * Store the @a image in the given @outputFile, using the
+     * ImageEncoder for the @a formatName the image was downloaded
+     * in.
      */
     public abstract void storeImage(Image image,
-                                    FileOutputStream outputFile);
+                                    String formatName,
+                                    OutputStream outputFile);
+
+    /**
+     * Returns the calling Thread's ImageEncoder for the format chosen
+     * by Options, where @a formatName is the format the image was
+     * downloaded in (e.g., "png" or "jpg").
+     */
+    public ImageEncoder getImageEncoder(String formatName) {
+        ImageEncoder.Format format = Options.instance().getImageEncoderFormat();
+
+        if (format == ImageEncoder.Format.SOURCE)
+            format = formatName.equalsIgnoreCase("jpg")
+                ? ImageEncoder.Format.JPEG
+                : ImageEncoder.Format.PNG;
+
+        return mImageEncoders.get().computeIfAbsent(format,
+                                                    this::makeImageEncoder);
+    }
+
+    /**
+     * Factory method that creates an ImageEncoder for the @a format,
+     * which is never SOURCE.
+     */
+    protected abstract ImageEncoder makeImageEncoder(ImageEncoder.Format format);
 
     /**
      * Error log formats the message and displays it for debugging
-     * purposes.
+     * purposes.  The message is logged at the INFO level.
+     */
+    public void errorLog(String javaFile,
+                         String errorMessage) {
+        log(AsyncLog.Level.INFO, javaFile, errorMessage);
+    }
+
+    /**
+     * Formats the message from @a javaFile and displays it if @a
+     * level is at or above the level chosen by Options.  The caller
+     * doesn't wait for the message to be displayed.
      */
-    public abstract void errorLog(String javaFile,
-                                  String errorMessage);
+    public abstract void log(AsyncLog.Level level,
+                             String javaFile,
+                             String message);
     
     /**
      * Make the constructor protected to ensure singleton access.
@@ -1,19 +1,23 @@
 package example;
 
-import java.awt.Color;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.function.Consumer;
 
-import javax.imageio.ImageIO;
+import filters.PixelKernel;
 
 /**
  * @class PlatformStrategyConsole
@@ -29,11 +33,20 @@ public class PlatformStrategyConsole extends PlatformStrategy {
      */
     protected final PrintStream mOutput;
 
+    /**
+     * The sink the AsyncLog writes this platform's messages to.
+     */
+    private final Consumer<String> mLogSink;
+
     /** 
      * Constructor initializes the data member.
      */
     public PlatformStrategyConsole(Object output) {
         mOutput = (PrintStream) output;
+        mLogSink = text -> {
+            mOutput.print(text);
+            mOutput.flush();
+        };
     }
     
     /**
@@ -102,6 +115,31 @@ public class PlatformStrategyConsole extends PlatformStrategy {
     	return variableNumberOfInputURLs;
 	}
 	
+    /**
+     * Overrides the getUrlIterator method so that URLs are read from
+     * a delimited file lazily, one iteration cycle at a time, instead
+     * of reading the whole file via getUrlLists() before the first
+     * cycle starts.
+     */
+    @Override
+    public Iterator<List<URL>> getUrlIterator(InputSource source) {
+        if (source != InputSource.FILE)
+            return super.getUrlIterator(source);
+
+        try {
+            Iterator<List<URL>> urlIterator =
+                new UrlManifestIterator(Paths.get(Options.instance().getURLFilePathname()),
+                                        Options.instance().getSeparator());
+            return urlIterator.hasNext() ? urlIterator : null;
+        } catch (NoSuchFileException e) {
+            mOutput.println("URL file not found");
+            return null;
+        } catch (IOException e) {
+            mOutput.println("Error reading file");
+            return null;
+        }
+    }
+
     /**
      * Return the path for the directory where images are stored.
      */
@@ -110,74 +148,89 @@ public class PlatformStrategyConsole extends PlatformStrategy {
     }
 
     /**
-     * Factory method that creates an @a Image from a byte array.
+     * Factory method that creates an @a Image from a byte array in
+     * the format @a formatName.
+     */
+    public Image makeImage(byte[] imageData,
+                           String formatName){
+        return new BufferedImage(imageData, formatName);
+    }
+
+    /**
+     * Factory method that creates an @a Image by decoding it straight
+     * from the @a imageStream in the format @a formatName.
      */
-    public Image makeImage(byte[] imageData){
-        return new BufferedImage(imageData);
+    public Image makeImage(InputStream imageStream,
+                           String formatName) throws IOException {
+        return new BufferedImage(imageStream, formatName);
     }
      
     /**
      * Apply a grayscale filter to the @a imageEntity and return it.
      */
     public ImageEntity grayScaleFilter(ImageEntity imageEntity) {
-    	Image imageAdapter =
-            ((ImageEntity) imageEntity).getImage();
+        Image imageAdapter = imageEntity.getImage();
         java.awt.image.BufferedImage originalImage = 
             ((BufferedImage) imageAdapter).mBufferedImage;
-        java.awt.image.BufferedImage grayScaleImg =
-            new java.awt.image.BufferedImage
-            (originalImage.getColorModel(),
-             originalImage.copyData(null),
-             originalImage.getColorModel().isAlphaPremultiplied(),
-             null);
-    
-        boolean hasTransparent =
-            grayScaleImg.getColorModel().hasAlpha();
-        int width = grayScaleImg.getWidth();
-        int height = grayScaleImg.getHeight();
-    
-        // A common pixel-by-pixel grayscale conversion algorithm
-        // using values obtained from en.wikipedia.org/wiki/Grayscale.
-        for (int i = 0; i < height; ++i) {
-            for (int j = 0; j < width; ++j) {
-            	
-            	// Check if the pixel is transparent in the original.
-                if (hasTransparent 
-                    && (grayScaleImg.getRGB(j,
-                                            i) >> 24) == 0x00) 
-                    continue;
-                
-                // Convert the pixel to grayscale.
-                Color c = new Color(grayScaleImg.getRGB(j,
-                                                        i));
-                int grayConversion =
-                    (int) (c.getRed() * 0.299)
-                    + (int) (c.getGreen() * 0.587)
-                    + (int) (c.getBlue() * 0.114);
-                Color grayScale = new Color(grayConversion,
-                                            grayConversion,
-                                            grayConversion);
-                grayScaleImg.setRGB(j, i, grayScale.getRGB());
-            }
-        }
-   	
-    	BufferedImage grayScaleImage = 
-            new BufferedImage(grayScaleImg);
+
+        // Convert the image to grayscale directly on its raster, in
+        // parallel, writing to a new image unless the original can
+        // be changed in place.
+        java.awt.image.BufferedImage grayScaleImage = 
+            RasterKernel.grayScale(originalImage,
+                                   !imageAdapter.isShared());
 
         return new ImageEntity(imageEntity.getSourceURL(),
-                               grayScaleImage);
+                               adapt(imageAdapter, grayScaleImage));
     }
     
     /**
-     * Store the @a image in the given @outputFile.
+     * Apply the point-wise @a kernel to each pixel of the @a
+     * imageEntity in a single pass and return the result.
+     */
+    public ImageEntity applyPixelKernel(ImageEntity imageEntity,
+                                        PixelKernel kernel) {
+        Image imageAdapter = imageEntity.getImage();
+        java.awt.image.BufferedImage originalImage = 
+            ((BufferedImage) imageAdapter).mBufferedImage;
+
+        // Apply the kernel directly on the image's raster, in
+        // parallel, writing to a new image unless the original can be
+        // changed in place.
+        java.awt.image.BufferedImage filteredImage =
+            RasterKernel.apply(originalImage,
+                               kernel,
+                               !imageAdapter.isShared());
+
+        return new ImageEntity(imageEntity.getSourceURL(),
+                               adapt(imageAdapter, filteredImage));
+    }
+
+    /**
+     * Returns the Image for the @a filteredImage that a filter made
+     * from the @a original Image.  If the filter changed the original
+     * in place the original Image is reused, so the pixel buffer is
+     * still released just once.
+     */
+    private static Image adapt(Image original,
+                               java.awt.image.BufferedImage filteredImage) {
+        return filteredImage == ((BufferedImage) original).mBufferedImage
+            ? original
+            : new BufferedImage(filteredImage);
+    }
+
+    /**
+     * Store the @a image in the given @outputFile, using the
+     * ImageEncoder for the @a formatName the image was downloaded
+     * in.
      */
     public void storeImage(Image imageAdapter,
-                           FileOutputStream outputFile) {
+                           String formatName,
+                           OutputStream outputFile) {
     	// Write the image to the appropriate directory.
         try {
-            ImageIO.write(((BufferedImage) imageAdapter).mBufferedImage,
-                          "png",
-                          outputFile);
+            getImageEncoder(formatName).encode(imageAdapter,
+                                               outputFile);
         } catch (IOException e) {
             mOutput.println("ImageIO write failure");
             e.printStackTrace();
@@ -185,13 +238,33 @@ public class PlatformStrategyConsole extends PlatformStrategy {
     }
 
     /**
-     * Error log formats the message and displays it for the debugging
-     * purposes.
+     * Factory method that creates an ImageEncoder for the @a format.
+     */
+    @Override
+    protected ImageEncoder makeImageEncoder(ImageEncoder.Format format) {
+        switch (format) {
+        case JPEG:
+            return ImageWriterEncoder.jpeg(Options.instance().getJpegQuality());
+        case RAW:
+            return new RawRasterEncoder();
+        default:
+            return ImageWriterEncoder.png(Options.instance().getPngDeflateLevel());
+        }
+    }
+
+    /**
+     * Formats the message from @a javaFile and prints it on the
+     * output, in the background, if @a level is at or above the level
+     * chosen by Options.
      */
-    public void errorLog(String javaFile, String errorMessage) {
-        mOutput.println(javaFile 
-                        + " " 
-                        + errorMessage);
+    @Override
+    public void log(AsyncLog.Level level,
+                    String javaFile,
+                    String message) {
+        AsyncLog.instance().log(level,
+                                mLogSink,
+                                javaFile,
+                                message);
     }
     
 }
@@ -0,0 +1,507 @@
+package example;
+
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+
+import filters.GrayScaleKernel;
+import filters.PixelKernel;
+
+/**
+ * @class RasterKernel
+ *
+ * @brief Applies point-wise pixel operations (i.e., PixelKernels) to
+ *        a Java BufferedImage by working directly on the array that
+ *        backs its raster, rather than going pixel-by-pixel through
+ *        getRGB()/setRGB() and the ColorModel.  Unless the caller
+ *        owns the image, the results are written to a new image in
+ *        the same pass that reads the original.  The rows of the
+ *        image are split into tiles that are processed in parallel
+ *        on a ForkJoinPool and no objects are allocated per pixel.
+ *        Layouts that aren't handled directly fall back to
+ *        getRGB()/setRGB().  Packed int pixels are converted with SIMD
+ *        instructions via the Vector API when the RasterKernelVector
+ *        class and the jdk.incubator.vector module are available at
+ *        runtime.
+ */
+final class RasterKernel {
+    /**
+     * The (approximate) number of pixels in each tile that's
+     * processed as a single ForkJoinTask.
+     */
+    private static final int TILE_PIXELS = 64 * 1024;
+
+    /**
+     * Converts pixels that aren't packed ints to grayscale.
+     */
+    private static final PixelKernel GRAY_SCALE_KERNEL =
+        new GrayScaleKernel();
+
+    /**
+     * Converts a run of packed (A)RGB int pixels to grayscale.
+     */
+    interface GrayScaleRun {
+        /**
+         * Convert @a length pixels of @a source starting at index @a
+         * sourceFrom to grayscale and store them in @a destination
+         * starting at index @a destinationFrom.  Transparent pixels
+         * are copied unchanged if @a hasAlpha.  The two arrays may be
+         * the same array.
+         */
+        void grayScale(int[] source,
+                       int sourceFrom,
+                       int[] destination,
+                       int destinationFrom,
+                       int length,
+                       boolean hasAlpha);
+    }
+
+    /**
+     * Converts one pixel at a time.
+     */
+    static final GrayScaleRun SCALAR_GRAY_SCALE_RUN =
+        RasterKernel::grayScaleRun;
+
+    /**
+     * The fastest GrayScaleRun available on this platform.
+     */
+    private static final GrayScaleRun GRAY_SCALE_RUN =
+        makeGrayScaleRun();
+
+    /**
+     * Make the constructor private since all the methods are static.
+     */
+    private RasterKernel() {}
+
+    /**
+     * Factory method that returns the SIMD GrayScaleRun if the Vector
+     * API is available, else the scalar one.  The SIMD version is
+     * loaded reflectively since it's compiled separately (see the
+     * "vector" source folder) for JDKs that have the
+     * jdk.incubator.vector module.
+     */
+    private static GrayScaleRun makeGrayScaleRun() {
+        try {
+            return (GrayScaleRun) Class.forName("example.RasterKernelVector")
+                .getDeclaredConstructor()
+                .newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return SCALAR_GRAY_SCALE_RUN;
+        }
+    }
+
+    /**
+     * Returns the grayscale version of the @a original image.
+     * Transparent pixels are left untouched and all other pixels
+     * become opaque.  If @a inPlace is true the @a original is owned
+     * by the caller and is converted in place, else the result is
+     * written to a new image in the same pass that reads the
+     * original, so the original is never copied first.
+     */
+    static java.awt.image.BufferedImage grayScale(java.awt.image.BufferedImage original,
+                                                  boolean inPlace) {
+        // Packed int pixels can be converted in runs (possibly with
+        // SIMD instructions), so they don't go through the kernel.
+        if (isPacked(original)) {
+            java.awt.image.BufferedImage image = inPlace
+                ? original
+                : makeDestination(original);
+            int[] source = pixelInts(original);
+            int sourceStride = scanlineStride(original);
+            int[] destination = pixelInts(image);
+            int destinationStride = scanlineStride(image);
+            int width = original.getWidth();
+            boolean hasAlpha = original.getColorModel().hasAlpha();
+
+            forEachTile(original.getHeight(),
+                        width,
+                        (fromRow, toRow) -> {
+                            for (int row = fromRow; row < toRow; ++row)
+                                GRAY_SCALE_RUN.grayScale(source,
+                                                         row * sourceStride,
+                                                         destination,
+                                                         row * destinationStride,
+                                                         width,
+                                                         hasAlpha);
+                        });
+            return image;
+        }
+
+        return apply(original, GRAY_SCALE_KERNEL, inPlace);
+    }
+
+    /**
+     * Returns the @a original image with the @a kernel applied to
+     * each of its pixels in a single pass.  If @a inPlace is true the
+     * @a original is owned by the caller and is changed in place,
+     * else the result is written to a new image.
+     */
+    static java.awt.image.BufferedImage apply(java.awt.image.BufferedImage original,
+                                              PixelKernel kernel,
+                                              boolean inPlace) {
+        int width = original.getWidth();
+        boolean hasAlpha = original.getColorModel().hasAlpha();
+
+        if (isPacked(original)) {
+            java.awt.image.BufferedImage image = inPlace
+                ? original
+                : makeDestination(original);
+            int[] source = pixelInts(original);
+            int sourceStride = scanlineStride(original);
+            int[] destination = pixelInts(image);
+            int destinationStride = scanlineStride(image);
+
+            forEachTile(original.getHeight(),
+                        width,
+                        (fromRow, toRow) -> {
+                            for (int row = fromRow; row < toRow; ++row)
+                                applyToInts(source,
+                                            row * sourceStride,
+                                            destination,
+                                            row * destinationStride,
+                                            width,
+                                            hasAlpha,
+                                            kernel);
+                        });
+            return image;
+        }
+
+        if (isInterleaved(original)) {
+            java.awt.image.BufferedImage image = inPlace
+                ? original
+                : makeDestination(original);
+            byte[] source = pixelBytes(original);
+            int sourceStride = scanlineStride(original);
+            byte[] destination = pixelBytes(image);
+            int destinationStride = scanlineStride(image);
+
+            forEachTile(original.getHeight(),
+                        width,
+                        (fromRow, toRow) -> {
+                            for (int row = fromRow; row < toRow; ++row)
+                                applyToBytes(source,
+                                             row * sourceStride,
+                                             destination,
+                                             row * destinationStride,
+                                             width,
+                                             hasAlpha,
+                                             kernel);
+                        });
+            return image;
+        }
+
+        // Any other layout (e.g., a palette) goes through the
+        // ColorModel, which isn't safe to share between Threads, on
+        // a copy of the original unless it can be changed in place.
+        java.awt.image.BufferedImage image = inPlace
+            ? original
+            : copy(original);
+        applyToRGB(image, kernel);
+        return image;
+    }
+
+    /**
+     * Returns the @a original image if its pixels are packed ints
+     * (i.e., TYPE_INT_RGB or TYPE_INT_ARGB), which the filters handle
+     * fastest, else a copy in one of those layouts whose pixel buffer
+     * is borrowed from the PixelBufferPool.  The copy is TYPE_INT_ARGB
+     * if the original has an alpha channel, else TYPE_INT_RGB.  The
+     * pixels are converted once via getRGB(), i.e., to the same
+     * colors the getRGB() fallback of the filters would see.
+     */
+    static java.awt.image.BufferedImage toPacked(java.awt.image.BufferedImage original) {
+        if (isPacked(original))
+            return original;
+
+        int width = original.getWidth();
+        int height = original.getHeight();
+        ColorModel colorModel = original.getColorModel().hasAlpha()
+            ? ColorModel.getRGBdefault()
+            : new DirectColorModel(24, 0x00FF0000, 0x0000FF00, 0x000000FF);
+
+        java.awt.image.BufferedImage image = PixelBufferPool.instance()
+            .borrowImage(colorModel,
+                         colorModel.createCompatibleSampleModel(width, height),
+                         false);
+
+        // The ColorModel of the original isn't safe to share between
+        // Threads, so this isn't split into tiles.
+        original.getRGB(0, 0,
+                        width, height,
+                        pixelInts(image),
+                        0,
+                        scanlineStride(image));
+        return image;
+    }
+
+    /**
+     * Returns a new image with the same size and layout as the @a
+     * original, whose pixels are yet to be written.  Its pixel buffer
+     * is borrowed from the PixelBufferPool.
+     */
+    private static java.awt.image.BufferedImage makeDestination(java.awt.image.BufferedImage original) {
+        java.awt.image.BufferedImage image = PixelBufferPool.instance()
+            .borrowImage(original.getColorModel(),
+                         original.getSampleModel()
+                         .createCompatibleSampleModel(original.getWidth(),
+                                                      original.getHeight()),
+                         false);
+
+        return image != null
+            ? image
+            : new java.awt.image.BufferedImage
+              (original.getColorModel(),
+               original.getRaster().createCompatibleWritableRaster(),
+               original.getColorModel().isAlphaPremultiplied(),
+               null);
+    }
+
+    /**
+     * Returns a copy of the @a original image that has its own
+     * raster.
+     */
+    private static java.awt.image.BufferedImage copy(java.awt.image.BufferedImage original) {
+        return new java.awt.image.BufferedImage
+            (original.getColorModel(),
+             original.copyData(null),
+             original.getColorModel().isAlphaPremultiplied(),
+             null);
+    }
+
+    /**
+     * Returns the array of packed int pixels behind the @a image.
+     */
+    private static int[] pixelInts(java.awt.image.BufferedImage image) {
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Returns the array of interleaved byte pixels behind the @a
+     * image.
+     */
+    private static byte[] pixelBytes(java.awt.image.BufferedImage image) {
+        return ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Returns the number of array elements between the starts of
+     * consecutive rows of the @a image, which is either packed or
+     * interleaved.
+     */
+    private static int scanlineStride(java.awt.image.BufferedImage image) {
+        SampleModel sampleModel = image.getRaster().getSampleModel();
+        return sampleModel instanceof SinglePixelPackedSampleModel
+            ? ((SinglePixelPackedSampleModel) sampleModel).getScanlineStride()
+            : ((PixelInterleavedSampleModel) sampleModel).getScanlineStride();
+    }
+
+    /**
+     * Convert @a length packed (A)RGB int pixels of @a source
+     * starting at index @a sourceFrom to grayscale one pixel at a
+     * time and store them in @a destination starting at index @a
+     * destinationFrom.
+     */
+    private static void grayScaleRun(int[] source,
+                                     int sourceFrom,
+                                     int[] destination,
+                                     int destinationFrom,
+                                     int length,
+                                     boolean hasAlpha) {
+        // An image without alpha keeps its top byte clear.
+        int mask = hasAlpha ? 0xFFFFFFFF : 0x00FFFFFF;
+
+        for (int i = 0; i < length; ++i) {
+            int argb = source[sourceFrom + i];
+
+            // Copy pixels that are transparent.
+            destination[destinationFrom + i] =
+                hasAlpha && (argb >>> 24) == 0
+                ? argb
+                : GrayScaleKernel.grayScale(argb) & mask;
+        }
+    }
+
+    /**
+     * Apply the @a kernel to @a length packed (A)RGB int pixels of @a
+     * source starting at index @a sourceFrom and store them in @a
+     * destination starting at index @a destinationFrom.
+     */
+    private static void applyToInts(int[] source,
+                                    int sourceFrom,
+                                    int[] destination,
+                                    int destinationFrom,
+                                    int length,
+                                    boolean hasAlpha,
+                                    PixelKernel kernel) {
+        // An image without alpha is passed to the kernel as opaque
+        // and keeps its top byte clear.
+        int opaque = hasAlpha ? 0 : 0xFF000000;
+        int mask = hasAlpha ? 0xFFFFFFFF : 0x00FFFFFF;
+
+        for (int i = 0; i < length; ++i)
+            destination[destinationFrom + i] =
+                kernel.apply(source[sourceFrom + i] | opaque) & mask;
+    }
+
+    /**
+     * Apply the @a kernel to @a length interleaved (A)BGR byte pixels
+     * of @a source starting at index @a sourceFrom and store them in
+     * @a destination starting at index @a destinationFrom.
+     */
+    private static void applyToBytes(byte[] source,
+                                     int sourceFrom,
+                                     byte[] destination,
+                                     int destinationFrom,
+                                     int length,
+                                     boolean hasAlpha,
+                                     PixelKernel kernel) {
+        int pixelStride = hasAlpha ? 4 : 3;
+
+        for (int i = 0, end = length * pixelStride;
+             i < end;
+             i += pixelStride) {
+            int from = sourceFrom + i;
+            int to = destinationFrom + i;
+
+            // The components are stored in (A)BGR order, so blue
+            // follows the alpha component (if any).
+            int alpha = 0xFF;
+            if (hasAlpha)
+                alpha = source[from++] & 0xFF;
+
+            int argb = kernel.apply(alpha << 24
+                                    | (source[from + 2] & 0xFF) << 16
+                                    | (source[from + 1] & 0xFF) << 8
+                                    | (source[from] & 0xFF));
+
+            if (hasAlpha)
+                destination[to++] = (byte) (argb >>> 24);
+            destination[to + 2] = (byte) (argb >> 16);
+            destination[to + 1] = (byte) (argb >> 8);
+            destination[to] = (byte) argb;
+        }
+    }
+
+    /**
+     * Apply the @a kernel to each pixel of the @a image in place via
+     * getRGB() and setRGB().
+     */
+    private static void applyToRGB(java.awt.image.BufferedImage image,
+                                   PixelKernel kernel) {
+        for (int y = 0; y < image.getHeight(); ++y)
+            for (int x = 0; x < image.getWidth(); ++x) {
+                int argb = image.getRGB(x, y);
+                int result = kernel.apply(argb);
+
+                // Only write back pixels the kernel changed, so that
+                // e.g. transparent pixels keep their exact samples.
+                if (result != argb)
+                    image.setRGB(x, y, result);
+            }
+    }
+
+    /**
+     * Returns true if the @a image is a TYPE_INT_RGB or TYPE_INT_ARGB
+     * image whose raster starts at the beginning of its array.
+     */
+    private static boolean isPacked(java.awt.image.BufferedImage image) {
+        WritableRaster raster = image.getRaster();
+
+        return (image.getType() == java.awt.image.BufferedImage.TYPE_INT_RGB
+                || image.getType() == java.awt.image.BufferedImage.TYPE_INT_ARGB)
+            && raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+            && raster.getDataBuffer().getOffset() == 0
+            && raster.getSampleModelTranslateX() == 0
+            && raster.getSampleModelTranslateY() == 0;
+    }
+
+    /**
+     * Returns true if the @a image is a TYPE_3BYTE_BGR or
+     * TYPE_4BYTE_ABGR image whose raster starts at the beginning of
+     * its array and has its bands interleaved in (A)BGR order, which
+     * is the layout of such images created by ImageIO.
+     */
+    private static boolean isInterleaved(java.awt.image.BufferedImage image) {
+        WritableRaster raster = image.getRaster();
+
+        if ((image.getType() != java.awt.image.BufferedImage.TYPE_3BYTE_BGR
+             && image.getType() != java.awt.image.BufferedImage.TYPE_4BYTE_ABGR)
+            || !(raster.getSampleModel() instanceof PixelInterleavedSampleModel)
+            || raster.getDataBuffer().getOffset() != 0
+            || raster.getSampleModelTranslateX() != 0
+            || raster.getSampleModelTranslateY() != 0)
+            return false;
+
+        PixelInterleavedSampleModel sampleModel =
+            (PixelInterleavedSampleModel) raster.getSampleModel();
+        int bands = sampleModel.getNumBands();
+        int[] expectedOffsets = bands == 4
+            ? new int[] { 3, 2, 1, 0 }
+            : new int[] { 2, 1, 0 };
+
+        return sampleModel.getPixelStride() == bands
+            && Arrays.equals(sampleModel.getBandOffsets(),
+                             expectedOffsets);
+    }
+
+    /**
+     * An operation on a range of rows.
+     */
+    interface RowRange {
+        void process(int fromRow, int toRow);
+    }
+
+    /**
+     * Split the @a height rows of an image that's @a width pixels
+     * wide into tiles and run @a rowRange on each tile in parallel.
+     */
+    static void forEachTile(int height,
+                            int width,
+                            RowRange rowRange) {
+        int rowsPerTile = Math.max(1, TILE_PIXELS / Math.max(1, width));
+        new TileTask(0, height, rowsPerTile, rowRange).invoke();
+    }
+
+    /**
+     * @class TileTask
+     *
+     * @brief Recursively splits a range of rows in half until it's no
+     *        bigger than a tile and then processes it.
+     */
+    private static class TileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int mFromRow;
+        private final int mToRow;
+        private final int mRowsPerTile;
+        private final RowRange mRowRange;
+
+        TileTask(int fromRow,
+                 int toRow,
+                 int rowsPerTile,
+                 RowRange rowRange) {
+            mFromRow = fromRow;
+            mToRow = toRow;
+            mRowsPerTile = rowsPerTile;
+            mRowRange = rowRange;
+        }
+
+        @Override
+        protected void compute() {
+            if (mToRow - mFromRow <= mRowsPerTile)
+                mRowRange.process(mFromRow, mToRow);
+            else {
+                int middle = (mFromRow + mToRow) >>> 1;
+                invokeAll(new TileTask(mFromRow, middle, mRowsPerTile, mRowRange),
+                          new TileTask(middle, mToRow, mRowsPerTile, mRowRange));
+            }
+        }
+    }
+}
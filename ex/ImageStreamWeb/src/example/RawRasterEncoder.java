@@ -0,0 +1,78 @@
+package example;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * @class RawRasterEncoder
+ *
+ * @brief Writes the pixels of a BufferedImage uncompressed, so that
+ *        downstream consumers can map them without decoding.  The
+ *        file starts with a 16 byte header of big-endian ints: the
+ *        MAGIC number, the width, the height, and the number of
+ *        bytes per pixel (always 4).  It's followed by the rows of
+ *        non-premultiplied ARGB pixels from top to bottom, one
+ *        big-endian int per pixel.
+ */
+class RawRasterEncoder implements ImageEncoder {
+    /**
+     * The first int of each file, i.e., "ARGB" in ASCII.
+     */
+    static final int MAGIC = 0x41524742;
+
+    /**
+     * The number of bytes in the header.
+     */
+    static final int HEADER_BYTES = 16;
+
+    /**
+     * The pixels of the row being written, which is reused for each
+     * row of each image.
+     */
+    private int[] mRow = new int[0];
+
+    /**
+     * The bytes of the row being written, which is reused for each
+     * row of each image.
+     */
+    private ByteBuffer mBytes = ByteBuffer.allocate(HEADER_BYTES);
+
+    /**
+     * Returns the file name extension of raw images, i.e., "raw".
+     */
+    @Override
+    public String getExtension() {
+        return "raw";
+    }
+
+    /**
+     * Encode the @a image and write it to the @a output.
+     */
+    @Override
+    public void encode(Image image,
+                       OutputStream output) throws IOException {
+        java.awt.image.BufferedImage bufferedImage =
+            ((BufferedImage) image).mBufferedImage;
+        int width = bufferedImage.getWidth();
+        int height = bufferedImage.getHeight();
+
+        if (mRow.length < width) {
+            mRow = new int[width];
+            mBytes = ByteBuffer.allocate(Math.max(HEADER_BYTES,
+                                                  4 * width));
+        }
+
+        mBytes.clear();
+        mBytes.putInt(MAGIC).putInt(width).putInt(height).putInt(4);
+        output.write(mBytes.array(), 0, HEADER_BYTES);
+
+        for (int y = 0; y < height; ++y) {
+            bufferedImage.getRGB(0, y, width, 1, mRow, 0, width);
+
+            mBytes.clear();
+            mBytes.asIntBuffer().put(mRow, 0, width);
+            output.write(mBytes.array(), 0, 4 * width);
+        }
+    }
+}
@@ -0,0 +1,425 @@
+package example;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @class SegmentStore
+ *
+ * @brief Stores encoded images in a few large append-only segment
+ *        files rather than in one small file per filter and image,
+ *        which saves the inodes and metadata updates of millions of
+ *        small files.  Each record in a segment holds the filter
+ *        name, the file name, and the encoded image.  When a segment
+ *        reaches MAX_SEGMENT_BYTES it's sealed by appending an index
+ *        of the offsets of its images, so it can be opened again
+ *        without reading the images.  A segment that wasn't sealed
+ *        (e.g., because the program exited) is indexed by scanning
+ *        its records.  Images are read back by memory mapping their
+ *        segments.  This class is a singleton.
+ */
+public class SegmentStore {
+    /**
+     * The singleton @a SegmentStore instance.
+     */
+    private static SegmentStore sUniqueInstance = null;
+
+    /**
+     * The directory the segments are stored in, which is under
+     * PlatformStrategy.getDirectoryPath().
+     */
+    public static final String SEGMENT_DIRECTORY = "segments";
+
+    /**
+     * A segment is sealed once it holds at least this many bytes.
+     */
+    private static final long MAX_SEGMENT_BYTES = 256L * 1024 * 1024;
+
+    /**
+     * The first int of each record.
+     */
+    private static final int RECORD_MAGIC = 0x494d4731; // "IMG1"
+
+    /**
+     * The first and last ints of the index of a sealed segment.
+     */
+    private static final int INDEX_MAGIC = 0x49445831; // "IDX1"
+
+    /**
+     * The number of bytes after the index of a sealed segment, i.e.,
+     * the offset of the index and INDEX_MAGIC.
+     */
+    private static final int TRAILER_BYTES = 12;
+
+    /**
+     * Where an image is stored.
+     */
+    private static class Location {
+        final File mSegment;
+        final long mOffset;
+        final int mLength;
+
+        Location(File segment,
+                 long offset,
+                 int length) {
+            mSegment = segment;
+            mOffset = offset;
+            mLength = length;
+        }
+    }
+
+    /**
+     * The directory the segments are stored in.
+     */
+    private final File mDirectory;
+
+    /**
+     * The location of each image, keyed by the filter name and the
+     * file name (see key()).
+     */
+    private final Map<String, Location> mIndex =
+        new ConcurrentHashMap<>();
+
+    /**
+     * The segment images are appended to, or null if the next image
+     * starts a new segment.
+     */
+    private File mSegment;
+
+    /**
+     * The channel used to append to mSegment.
+     */
+    private FileChannel mChannel;
+
+    /**
+     * The keys of the images in mSegment, in the order they were
+     * appended.
+     */
+    private final List<String> mSegmentKeys = new ArrayList<>();
+
+    /**
+     * The locations of the images in mSegment, in the same order as
+     * mSegmentKeys.
+     */
+    private final List<Location> mSegmentLocations = new ArrayList<>();
+
+    /**
+     * The number of the last segment that was created.
+     */
+    private int mLastSegmentNumber;
+
+    /**
+     * The read-only mappings of the segments, which are remapped when
+     * an image is read that was appended after a segment was mapped.
+     */
+    private final Map<File, MappedByteBuffer> mMappings = new HashMap<>();
+
+    /**
+     * Method to return the one and only singleton instance.
+     */
+    public static synchronized SegmentStore instance() {
+        if (sUniqueInstance == null)
+            sUniqueInstance =
+                new SegmentStore(new File(PlatformStrategy.instance().getDirectoryPath(),
+                                          SEGMENT_DIRECTORY));
+
+        return sUniqueInstance;
+    }
+
+    /**
+     * Constructor indexes the segments that are already in the @a
+     * directory.
+     */
+    private SegmentStore(File directory) {
+        mDirectory = directory;
+
+        File[] segments = directory.listFiles((dir, name) -> name.endsWith(".seg"));
+        if (segments == null)
+            return;
+
+        // Later segments replace images stored under the same names in
+        // earlier ones.
+        Arrays.sort(segments);
+        for (File segment : segments) {
+            try {
+                mLastSegmentNumber = Math.max(mLastSegmentNumber,
+                                              segmentNumber(segment));
+                load(segment);
+            } catch (IOException | RuntimeException e) {
+                PlatformStrategy.instance().log(AsyncLog.Level.WARN,
+                                                "SegmentStore",
+                                                "unable to index "
+                                                + segment
+                                                + ": "
+                                                + e);
+            }
+        }
+    }
+
+    /**
+     * Append the @a image (from its position to its limit) as the
+     * file @a fileName of the filter @a filterName, replacing any
+     * image that was stored under the same names before.  Returns the
+     * segment the image was appended to.
+     */
+    public synchronized File append(String filterName,
+                                    String fileName,
+                                    ByteBuffer image) throws IOException {
+        String key = key(filterName, fileName);
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+
+        if (mChannel == null)
+            startSegment();
+
+        ByteBuffer header = ByteBuffer.allocate(12 + keyBytes.length);
+        header.putInt(RECORD_MAGIC)
+            .putInt(keyBytes.length)
+            .put(keyBytes)
+            .putInt(image.remaining())
+            .flip();
+
+        long offset = mChannel.size() + header.remaining();
+        int length = image.remaining();
+
+        // A gathering write appends the header and the image with one
+        // system call.
+        ByteBuffer[] record = { header, image };
+        while (header.hasRemaining() || image.hasRemaining())
+            mChannel.write(record);
+
+        Location location = new Location(mSegment, offset, length);
+        mIndex.put(key, location);
+        mSegmentKeys.add(key);
+        mSegmentLocations.add(location);
+
+        File segment = mSegment;
+        if (mChannel.size() >= MAX_SEGMENT_BYTES)
+            seal();
+        return segment;
+    }
+
+    /**
+     * Returns a read-only buffer with the image stored as the file @a
+     * fileName of the filter @a filterName, or null if there's no such
+     * image.  The buffer is mapped from the image's segment, so it's
+     * only valid until clear() is called.
+     */
+    public ByteBuffer read(String filterName,
+                           String fileName) throws IOException {
+        Location location = mIndex.get(key(filterName, fileName));
+        if (location == null)
+            return null;
+
+        ByteBuffer image = mapping(location.mSegment,
+                                   location.mOffset + location.mLength)
+            .duplicate();
+        image.position((int) location.mOffset);
+        image.limit((int) location.mOffset + location.mLength);
+        return image.slice();
+    }
+
+    /**
+     * Returns the names of the files stored for each filter, keyed by
+     * the filter name, both in alphabetical order.
+     */
+    public SortedMap<String, List<String>> getFileNames() {
+        SortedMap<String, List<String>> fileNames = new TreeMap<>();
+
+        for (String key : mIndex.keySet()) {
+            int separator = key.indexOf('/');
+            fileNames.computeIfAbsent(key.substring(0, separator),
+                                      filterName -> new ArrayList<>())
+                .add(key.substring(separator + 1));
+        }
+
+        fileNames.values().forEach(names -> names.sort(null));
+        return fileNames;
+    }
+
+    /**
+     * Seal the segment images are appended to, so the next image
+     * starts a new segment.
+     */
+    public synchronized void seal() throws IOException {
+        if (mChannel == null)
+            return;
+
+        try {
+            // The index is written in one buffer since it's small
+            // compared to the images.
+            List<byte[]> keys = new ArrayList<>(mSegmentKeys.size());
+            int indexBytes = 8 + TRAILER_BYTES;
+            for (String key : mSegmentKeys) {
+                byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+                keys.add(keyBytes);
+                indexBytes += 16 + keyBytes.length;
+            }
+
+            long indexOffset = mChannel.size();
+            ByteBuffer index = ByteBuffer.allocate(indexBytes);
+            index.putInt(INDEX_MAGIC).putInt(keys.size());
+            for (int i = 0; i < keys.size(); ++i) {
+                Location location = mSegmentLocations.get(i);
+                index.putInt(keys.get(i).length)
+                    .put(keys.get(i))
+                    .putLong(location.mOffset)
+                    .putInt(location.mLength);
+            }
+            index.putLong(indexOffset).putInt(INDEX_MAGIC).flip();
+
+            while (index.hasRemaining())
+                mChannel.write(index);
+        } finally {
+            mChannel.close();
+            mChannel = null;
+            mSegment = null;
+            mSegmentKeys.clear();
+            mSegmentLocations.clear();
+        }
+    }
+
+    /**
+     * Delete all the segments and the images stored in them.
+     */
+    public synchronized void clear() throws IOException {
+        if (mChannel != null) {
+            mChannel.close();
+            mChannel = null;
+            mSegment = null;
+            mSegmentKeys.clear();
+            mSegmentLocations.clear();
+        }
+
+        synchronized (mMappings) {
+            mMappings.clear();
+        }
+        mIndex.clear();
+
+        File[] segments = mDirectory.listFiles((dir, name) -> name.endsWith(".seg"));
+        if (segments != null)
+            for (File segment : segments)
+                segment.delete();
+    }
+
+    /**
+     * Create a new segment for images to be appended to.
+     */
+    private void startSegment() throws IOException {
+        mDirectory.mkdirs();
+        mSegment = new File(mDirectory,
+                            String.format("segment-%06d.seg",
+                                          ++mLastSegmentNumber));
+        mChannel = FileChannel.open(mSegment.toPath(),
+                                    StandardOpenOption.CREATE_NEW,
+                                    StandardOpenOption.WRITE,
+                                    StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Add the images in the @a segment to mIndex, from the segment's
+     * index if it's sealed or else by scanning its records.
+     */
+    private void load(File segment) throws IOException {
+        ByteBuffer buffer = mapping(segment, segment.length());
+        int size = buffer.limit();
+
+        if (size >= TRAILER_BYTES
+            && buffer.getInt(size - 4) == INDEX_MAGIC) {
+            buffer.position((int) buffer.getLong(size - TRAILER_BYTES));
+            if (buffer.getInt() != INDEX_MAGIC)
+                throw new IOException("corrupt index");
+
+            for (int i = buffer.getInt(); i > 0; --i) {
+                String key = readKey(buffer);
+                mIndex.put(key, new Location(segment,
+                                             buffer.getLong(),
+                                             buffer.getInt()));
+            }
+        } else {
+            buffer.position(0);
+
+            // Stop at the first record that's incomplete, e.g., one
+            // that was being appended when the program exited.
+            while (buffer.remaining() >= 12
+                   && buffer.getInt() == RECORD_MAGIC) {
+                int keyLength = buffer.getInt(buffer.position());
+                if (buffer.remaining() < 8 + keyLength)
+                    break;
+                String key = readKey(buffer);
+                int length = buffer.getInt();
+                if (buffer.remaining() < length)
+                    break;
+
+                mIndex.put(key, new Location(segment,
+                                             buffer.position(),
+                                             length));
+                buffer.position(buffer.position() + length);
+            }
+        }
+    }
+
+    /**
+     * Returns a read-only mapping of the @a segment that covers at
+     * least its first @a end bytes.
+     */
+    private MappedByteBuffer mapping(File segment,
+                                     long end) throws IOException {
+        synchronized (mMappings) {
+            MappedByteBuffer mapping = mMappings.get(segment);
+
+            if (mapping == null || mapping.capacity() < end) {
+                try (FileChannel channel =
+                     FileChannel.open(segment.toPath(),
+                                      StandardOpenOption.READ)) {
+                    mapping = channel.map(FileChannel.MapMode.READ_ONLY,
+                                          0,
+                                          channel.size());
+                }
+                mMappings.put(segment, mapping);
+            }
+            return mapping;
+        }
+    }
+
+    /**
+     * Returns the key read from the @a buffer, which is preceded by
+     * its length in bytes.
+     */
+    private static String readKey(ByteBuffer buffer) {
+        byte[] keyBytes = new byte[buffer.getInt()];
+        buffer.get(keyBytes);
+        return new String(keyBytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the index key for the file @a fileName of the filter @a
+     * filterName.
+     */
+    private static String key(String filterName,
+                              String fileName) {
+        // File names from ImageEntity.getFileName() start with '/'.
+        return filterName + '/' + new File(fileName).getName();
+    }
+
+    /**
+     * Returns the number in the name of the @a segment.
+     */
+    private static int segmentNumber(File segment) {
+        String name = segment.getName();
+        return Integer.parseInt(name.substring(name.indexOf('-') + 1,
+                                               name.lastIndexOf('.')));
+    }
+}
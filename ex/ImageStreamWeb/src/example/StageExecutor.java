@@ -0,0 +1,130 @@
+package example;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @class StageExecutor
+ *
+ * @brief Runs the tasks of one stage of a staged (SEDA-style)
+ *        StreamGang pipeline on a fixed-size pool of Threads that
+ *        take their work from a bounded queue.  When the queue is
+ *        full the submitting Thread blocks until there's room, which
+ *        provides backpressure to the upstream stage.  Stages must
+ *        therefore only submit work "downstream" so that a full
+ *        queue can never cause a deadlock.
+ */
+public class StageExecutor implements Executor {
+    /**
+     * The name of this stage, which is also used to name its Threads.
+     */
+    private final String mName;
+
+    /**
+     * The fixed-size pool of Threads that run the tasks in this stage.
+     */
+    private final ThreadPoolExecutor mThreadPool;
+
+    /**
+     * The StageMetrics the depth of the queue is recorded in each
+     * time a task is queued, or null if it isn't recorded.
+     */
+    private final StageMetrics mMetrics;
+
+    /**
+     * Constructor initializes the data members so that the stage
+     * named @a name runs its tasks on @a threads Threads and queues
+     * up to @a queueCapacity tasks before blocking its callers.  The
+     * depth of the queue is recorded in the @a metrics, unless it's
+     * null.
+     */
+    public StageExecutor(String name,
+                         int threads,
+                         int queueCapacity,
+                         StageMetrics metrics) {
+        mName = name;
+        mMetrics = metrics;
+
+        // Counts the Threads created for this stage.
+        final AtomicInteger threadCount = new AtomicInteger(0);
+
+        mThreadPool =
+            new ThreadPoolExecutor(threads,
+                                   threads,
+                                   0L,
+                                   TimeUnit.MILLISECONDS,
+                                   new ArrayBlockingQueue<Runnable>(queueCapacity),
+                                   // Name the Threads after the stage
+                                   // so they're easy to spot in a
+                                   // profiler.
+                                   runnable -> {
+                                       Thread thread =
+                                           new Thread(runnable,
+                                                      name
+                                                      + "-"
+                                                      + threadCount.incrementAndGet());
+                                       thread.setDaemon(true);
+                                       return thread;
+                                   },
+                                   // Block the caller until there's
+                                   // room in the queue rather than
+                                   // rejecting the task.
+                                   (task, executor) -> {
+                                       if (executor.isShutdown())
+                                           throw new RejectedExecutionException
+                                               (name + " is shut down");
+                                       try {
+                                           executor.getQueue().put(task);
+                                       } catch (InterruptedException e) {
+                                           Thread.currentThread().interrupt();
+                                           throw new RejectedExecutionException(e);
+                                       }
+                                   });
+
+        // Start all the Threads now since tasks that are put directly
+        // into the queue by the rejection handler above won't start
+        // any new Threads.
+        mThreadPool.prestartAllCoreThreads();
+    }
+
+    /**
+     * Run the @a task in this stage, blocking if the queue is full.
+     */
+    @Override
+    public void execute(Runnable task) {
+        mThreadPool.execute(task);
+
+        // Sample the depth of the queue each time a task is queued,
+        // whichever iteration cycle it belongs to.
+        if (mMetrics != null)
+            mMetrics.recordQueueDepth(mName, getQueueDepth());
+    }
+
+    /**
+     * Returns the name of this stage.
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Returns the number of tasks that are currently waiting to run.
+     */
+    public int getQueueDepth() {
+        return mThreadPool.getQueue().size();
+    }
+
+    /**
+     * Initiate an orderly shutdown of this stage and wait for the
+     * tasks that have already been submitted to complete.
+     */
+    public void shutdown() throws InterruptedException {
+        mThreadPool.shutdown();
+        mThreadPool.awaitTermination(Long.MAX_VALUE,
+                                     TimeUnit.NANOSECONDS);
+    }
+}
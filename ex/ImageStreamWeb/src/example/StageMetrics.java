@@ -0,0 +1,370 @@
+package example;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @class StageMetrics
+ *
+ * @brief Records how long each stage of an ImageStream takes per
+ *        image (download, decode, each filter, encode, store and
+ *        sync) in a LatencyHistogram, how many images and bytes each
+ *        iteration cycle processes per second, and, for a staged
+ *        pipeline, how deep the queue in front of each stage is each
+ *        time a task is queued.  Each ImageStream
+ *        has its own StageMetrics, which its ImageEntity objects
+ *        carry along so that the shared components (e.g., the
+ *        WriteBehindStore) record into the right one.  Recording
+ *        doesn't lock, so it can be done by any Thread.
+ */
+public class StageMetrics {
+    /**
+     * The names of the stages other than the filters, in the order
+     * images go through them.
+     */
+    public static final String DOWNLOAD = "download";
+    public static final String DECODE = "decode";
+    public static final String ENCODE = "encode";
+    public static final String STORE = "store";
+    public static final String SYNC = "sync";
+
+    /**
+     * The prefix of the name of the stage for each filter.
+     */
+    private static final String FILTER_PREFIX = "filter ";
+
+    /**
+     * The number of images and bytes processed by an iteration cycle
+     * and how long it took.
+     */
+    public static class CycleStats {
+        final long mCycle;
+        final long mStartNanos = System.nanoTime();
+        volatile long mElapsedNanos;
+        final AtomicLong mImagesStored = new AtomicLong(0);
+        final AtomicLong mBytesDownloaded = new AtomicLong(0);
+        final AtomicLong mBytesStored = new AtomicLong(0);
+
+        CycleStats(long cycle) {
+            mCycle = cycle;
+        }
+
+        public long getCycle() {
+            return mCycle;
+        }
+
+        public long getElapsedNanos() {
+            return mElapsedNanos;
+        }
+
+        public long getImagesStored() {
+            return mImagesStored.get();
+        }
+
+        public long getBytesDownloaded() {
+            return mBytesDownloaded.get();
+        }
+
+        public long getBytesStored() {
+            return mBytesStored.get();
+        }
+
+        public double getImagesPerSecond() {
+            return perSecond(getImagesStored());
+        }
+
+        public double getBytesDownloadedPerSecond() {
+            return perSecond(getBytesDownloaded());
+        }
+
+        public double getBytesStoredPerSecond() {
+            return perSecond(getBytesStored());
+        }
+
+        private double perSecond(long count) {
+            return mElapsedNanos == 0
+                ? 0.0
+                : count * 1e9 / mElapsedNanos;
+        }
+    }
+
+    /**
+     * The histogram of each stage, keyed by the stage name.
+     */
+    private final Map<String, LatencyHistogram> mStages =
+        new ConcurrentHashMap<>();
+
+    /**
+     * The depths of the queue in front of each stage of a staged
+     * pipeline, keyed by the stage name.  The histograms hold numbers
+     * of tasks rather than nanoseconds.
+     */
+    private final Map<String, LatencyHistogram> mQueueDepths =
+        new ConcurrentHashMap<>();
+
+    /**
+     * The iteration cycles that have been started, keyed by their
+     * number.
+     */
+    private final Map<Long, CycleStats> mCycles =
+        new ConcurrentHashMap<>();
+
+    /**
+     * Returns the name of the stage for the filter @a filterName.
+     */
+    public static String filterStage(String filterName) {
+        return FILTER_PREFIX + filterName;
+    }
+
+    /**
+     * Record that a @a stage that started at @a startNanos (from
+     * System.nanoTime()) has just finished.
+     */
+    public void record(String stage,
+                       long startNanos) {
+        getHistogram(stage).record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Returns the histogram for the @a stage.
+     */
+    public LatencyHistogram getHistogram(String stage) {
+        LatencyHistogram histogram = mStages.get(stage);
+        return histogram != null
+            ? histogram
+            : mStages.computeIfAbsent(stage,
+                                      key -> new LatencyHistogram());
+    }
+
+    /**
+     * Returns the names of the stages that have been recorded, in the
+     * order images go through them.
+     */
+    public List<String> getStages() {
+        return inStageOrder(mStages.keySet());
+    }
+
+    /**
+     * Record that the queue in front of the @a stage held @a depth
+     * tasks.
+     */
+    public void recordQueueDepth(String stage,
+                                 int depth) {
+        getQueueDepths(stage).record(depth);
+    }
+
+    /**
+     * Returns the histogram of the depths of the queue in front of
+     * the @a stage.
+     */
+    public LatencyHistogram getQueueDepths(String stage) {
+        LatencyHistogram histogram = mQueueDepths.get(stage);
+        return histogram != null
+            ? histogram
+            : mQueueDepths.computeIfAbsent(stage,
+                                           key -> new LatencyHistogram());
+    }
+
+    /**
+     * Returns the names of the stages whose queue depths have been
+     * recorded, in the order images go through them.
+     */
+    public List<String> getQueuedStages() {
+        return inStageOrder(mQueueDepths.keySet());
+    }
+
+    /**
+     * Note that iteration @a cycle has started.
+     */
+    public void startCycle(long cycle) {
+        mCycles.put(cycle, new CycleStats(cycle));
+    }
+
+    /**
+     * Note that iteration @a cycle is done.
+     */
+    public void endCycle(long cycle) {
+        CycleStats stats = mCycles.get(cycle);
+        if (stats != null)
+            stats.mElapsedNanos = System.nanoTime() - stats.mStartNanos;
+    }
+
+    /**
+     * Add @a bytes downloaded by iteration @a cycle.
+     */
+    public void addBytesDownloaded(long cycle,
+                                   long bytes) {
+        CycleStats stats = mCycles.get(cycle);
+        if (stats != null)
+            stats.mBytesDownloaded.addAndGet(bytes);
+    }
+
+    /**
+     * Add an image of @a bytes stored by iteration @a cycle.
+     */
+    public void addImageStored(long cycle,
+                               long bytes) {
+        CycleStats stats = mCycles.get(cycle);
+        if (stats != null) {
+            stats.mImagesStored.incrementAndGet();
+            stats.mBytesStored.addAndGet(bytes);
+        }
+    }
+
+    /**
+     * Returns the stats of the iteration cycles, in cycle order.
+     */
+    public List<CycleStats> getCycles() {
+        return Collections.unmodifiableList
+            (new ArrayList<>(new TreeMap<>(mCycles).values()));
+    }
+
+    /**
+     * Returns the metrics as CSV, with a row per stage followed by a
+     * row per stage queue and a row per iteration cycle.  Latencies
+     * are in microseconds.
+     */
+    public String toCsv() {
+        StringBuilder csv =
+            new StringBuilder("stage,count,mean_us,p50_us,p90_us,p99_us,max_us\n");
+
+        for (String stage : getStages()) {
+            LatencyHistogram histogram = getHistogram(stage);
+            csv.append(stage).append(',')
+                .append(histogram.getCount()).append(',')
+                .append(micros(histogram.getMean())).append(',')
+                .append(micros(histogram.getPercentile(50))).append(',')
+                .append(micros(histogram.getPercentile(90))).append(',')
+                .append(micros(histogram.getPercentile(99))).append(',')
+                .append(micros(histogram.getMax())).append('\n');
+        }
+
+        csv.append("queue,samples,mean,p50,p90,p99,max\n");
+
+        for (String stage : getQueuedStages()) {
+            LatencyHistogram histogram = getQueueDepths(stage);
+            csv.append(stage).append(',')
+                .append(histogram.getCount()).append(',')
+                .append(histogram.getMean()).append(',')
+                .append(histogram.getPercentile(50)).append(',')
+                .append(histogram.getPercentile(90)).append(',')
+                .append(histogram.getPercentile(99)).append(',')
+                .append(histogram.getMax()).append('\n');
+        }
+
+        csv.append("cycle,elapsed_ms,images,bytes_downloaded,bytes_stored,"
+                   + "images_per_sec,bytes_downloaded_per_sec,bytes_stored_per_sec\n");
+
+        for (CycleStats stats : getCycles())
+            csv.append(stats.getCycle()).append(',')
+                .append(stats.getElapsedNanos() / 1_000_000).append(',')
+                .append(stats.getImagesStored()).append(',')
+                .append(stats.getBytesDownloaded()).append(',')
+                .append(stats.getBytesStored()).append(',')
+                .append(String.format(Locale.ROOT, "%.1f", stats.getImagesPerSecond())).append(',')
+                .append(String.format(Locale.ROOT, "%.0f", stats.getBytesDownloadedPerSecond())).append(',')
+                .append(String.format(Locale.ROOT, "%.0f", stats.getBytesStoredPerSecond())).append('\n');
+
+        return csv.toString();
+    }
+
+    /**
+     * Returns the metrics as a JSON object with a "stages", a
+     * "queues" and a "cycles" array.  Latencies are in microseconds.
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder("{\"stages\":[");
+        String separator = "";
+
+        for (String stage : getStages()) {
+            LatencyHistogram histogram = getHistogram(stage);
+            json.append(separator)
+                .append("{\"stage\":\"").append(stage).append('"')
+                .append(",\"count\":").append(histogram.getCount())
+                .append(",\"meanUs\":").append(micros(histogram.getMean()))
+                .append(",\"p50Us\":").append(micros(histogram.getPercentile(50)))
+                .append(",\"p90Us\":").append(micros(histogram.getPercentile(90)))
+                .append(",\"p99Us\":").append(micros(histogram.getPercentile(99)))
+                .append(",\"maxUs\":").append(micros(histogram.getMax()))
+                .append('}');
+            separator = ",";
+        }
+
+        json.append("],\"queues\":[");
+        separator = "";
+
+        for (String stage : getQueuedStages()) {
+            LatencyHistogram histogram = getQueueDepths(stage);
+            json.append(separator)
+                .append("{\"stage\":\"").append(stage).append('"')
+                .append(",\"samples\":").append(histogram.getCount())
+                .append(",\"mean\":").append(histogram.getMean())
+                .append(",\"p50\":").append(histogram.getPercentile(50))
+                .append(",\"p90\":").append(histogram.getPercentile(90))
+                .append(",\"p99\":").append(histogram.getPercentile(99))
+                .append(",\"max\":").append(histogram.getMax())
+                .append('}');
+            separator = ",";
+        }
+
+        json.append("],\"cycles\":[");
+        separator = "";
+
+        for (CycleStats stats : getCycles()) {
+            json.append(separator)
+                .append("{\"cycle\":").append(stats.getCycle())
+                .append(",\"elapsedMs\":").append(stats.getElapsedNanos() / 1_000_000)
+                .append(",\"images\":").append(stats.getImagesStored())
+                .append(",\"bytesDownloaded\":").append(stats.getBytesDownloaded())
+                .append(",\"bytesStored\":").append(stats.getBytesStored())
+                .append(",\"imagesPerSec\":").append(String.format(Locale.ROOT, "%.1f", stats.getImagesPerSecond()))
+                .append(",\"bytesDownloadedPerSec\":").append(String.format(Locale.ROOT, "%.0f", stats.getBytesDownloadedPerSecond()))
+                .append(",\"bytesStoredPerSec\":").append(String.format(Locale.ROOT, "%.0f", stats.getBytesStoredPerSecond()))
+                .append('}');
+            separator = ",";
+        }
+
+        return json.append("]}").toString();
+    }
+
+    /**
+     * Returns the @a stages sorted in the order images go through
+     * them.
+     */
+    private static List<String> inStageOrder(Collection<String> stages) {
+        List<String> sorted = new ArrayList<>(stages);
+        sorted.sort((stage1, stage2) -> rank(stage1) != rank(stage2)
+                    ? Integer.compare(rank(stage1), rank(stage2))
+                    : stage1.compareTo(stage2));
+        return sorted;
+    }
+
+    /**
+     * Returns the position of the @a stage in the order images go
+     * through the stages.
+     */
+    private static int rank(String stage) {
+        switch (stage) {
+        case DOWNLOAD: return 0;
+        case DECODE: return 1;
+        case ENCODE: return 3;
+        case STORE: return 4;
+        case SYNC: return 5;
+        default: return 2; // A filter.
+        }
+    }
+
+    /**
+     * Returns @a nanos in microseconds.
+     */
+    private static long micros(long nanos) {
+        return nanos / 1000;
+    }
+}
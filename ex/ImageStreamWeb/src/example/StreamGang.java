@@ -28,6 +28,13 @@ public abstract class StreamGang<E> implements Runnable {
      */
     private final AtomicLong mCurrentCycle = new AtomicLong(0);
 
+    /**
+     * The maximum number of cycles whose processing can overlap,
+     * which defaults to 1, i.e., each cycle finishes before the next
+     * one starts.
+     */
+    private volatile int mMaxCyclesInFlight = 1;
+
     /**
      * Get the List to use as input.
      */
@@ -70,6 +77,21 @@ public abstract class StreamGang<E> implements Runnable {
         return mCurrentCycle.get();
     }
 
+    /**
+     * Set the maximum number of cycles whose processing can overlap.
+     */
+    protected void setMaxCyclesInFlight(int maxCyclesInFlight) {
+        mMaxCyclesInFlight = Math.max(1, maxCyclesInFlight);
+    }
+
+    /**
+     * Return the maximum number of cycles whose processing can
+     * overlap.
+     */
+    protected int getMaxCyclesInFlight() {
+        return mMaxCyclesInFlight;
+    }
+
     /**
      * Factory method that makes the next List of input to be processed
      * concurrently by the gang of Tasks.
@@ -0,0 +1,112 @@
+package example;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * @class TeeInputStream
+ *
+ * @brief An InputStream that counts the bytes read from the stream
+ *        it wraps and, if it's given an OutputStream, also copies
+ *        them to it, e.g., to keep the bytes of an image that's
+ *        decoded while it's downloaded.  Skipped bytes are read so
+ *        they're copied and counted too.  Marking isn't supported,
+ *        since bytes read again after a reset would be copied twice.
+ */
+class TeeInputStream extends FilterInputStream {
+    /**
+     * The stream the bytes are copied to, or null if they're only
+     * counted.
+     */
+    private final OutputStream mCopy;
+
+    /**
+     * The number of bytes read so far.
+     */
+    private long mCount = 0;
+
+    /**
+     * Constructor reads from @a istream and copies the bytes to @a
+     * copy, which may be null.
+     */
+    TeeInputStream(InputStream istream,
+                   OutputStream copy) {
+        super(istream);
+        mCopy = copy;
+    }
+
+    /**
+     * Returns the number of bytes read so far.
+     */
+    long getCount() {
+        return mCount;
+    }
+
+    /**
+     * Read the rest of the stream, e.g., after a decoder stopped at
+     * the end of an image, so all of it is copied and counted.
+     */
+    void drain() throws IOException {
+        byte[] buffer = new byte[4096];
+        while (read(buffer, 0, buffer.length) >= 0)
+            continue;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+            ++mCount;
+            if (mCopy != null)
+                mCopy.write(b);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer,
+                    int offset,
+                    int length) throws IOException {
+        int bytes = super.read(buffer, offset, length);
+        if (bytes > 0) {
+            mCount += bytes;
+            if (mCopy != null)
+                mCopy.write(buffer, offset, bytes);
+        }
+        return bytes;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0)
+            return 0;
+
+        byte[] buffer = new byte[(int) Math.min(n, 4096)];
+        long skipped = 0;
+        while (skipped < n) {
+            int bytes = read(buffer,
+                             0,
+                             (int) Math.min(n - skipped, buffer.length));
+            if (bytes < 0)
+                break;
+            skipped += bytes;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+}
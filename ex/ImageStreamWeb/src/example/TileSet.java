@@ -0,0 +1,341 @@
+package example;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.ColorModel;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import filters.Filter;
+
+/**
+ * @class TileSet
+ *
+ * @brief Filters and stores an image that's bigger than the tile size
+ *        chosen by Options (e.g., a gigapixel satellite image) as a
+ *        set of tiles, so the whole image is never decoded at once.
+ *        The image is decoded from top to bottom in one pass on the
+ *        calling Thread, one strip of tiles at a time (see
+ *        BufferedImage.decodeStrips()).  Each tile is copied out of
+ *        its strip and handed through a bounded queue to tasks in the
+ *        ForkJoinPool the TileSet runs in, which filter the tiles in
+ *        parallel and store them in the filter's directory as the
+ *        files "<name>_<row>_<column>.<format>".  The pixels held at
+ *        once are bounded by one strip plus two tiles per Thread of
+ *        the pool.  An image whose rows aren't decoded in order
+ *        (e.g., an interlaced PNG) is decoded one strip at a time via
+ *        ImageReadParam.setSourceRegion() instead, which decodes the
+ *        image from its start down to each strip.
+ */
+public final class TileSet {
+    /**
+     * Put on the queue of tiles to tell a task that takes them that
+     * there are no more.
+     */
+    private static final ImageEntity NO_MORE_TILES =
+        new ImageEntity(null, (Image) null);
+
+    /**
+     * Returns true if the image in the @a imageData of raw bytes in
+     * the format @a formatName is processed as a TileSet, i.e., if
+     * tiling is enabled, the image is bigger than one tile, and it
+     * isn't decoded to a target size instead.
+     */
+    static boolean isTiled(byte[] imageData,
+                           String formatName) {
+        int tileSize = Options.instance().getTileSize();
+        if (tileSize <= 0
+            || Options.instance().getTargetWidth() > 0
+            || Options.instance().getTargetHeight() > 0)
+            return false;
+
+        Dimension size = BufferedImage.getSize(imageData, formatName);
+        return size != null
+            && (size.width > tileSize || size.height > tileSize);
+    }
+
+    /**
+     * Apply the @a filter to each tile of the image of the @a
+     * imageEntity, which must be tiled (see ImageEntity.isTiled()),
+     * and store the filtered tiles in the directory @a pathName.
+     * Returns an ImageEntity without an Image that stands for the
+     * stored tiles, which succeeded if all of them were stored.
+     */
+    public static ImageEntity filter(Filter filter,
+                                     String pathName,
+                                     ImageEntity imageEntity) {
+        Dimension size = BufferedImage.getSize(imageEntity.getImageData(),
+                                               imageEntity.getFormatName());
+
+        ImageEntity tiles = new ImageEntity(imageEntity.getSourceURL(),
+                                            (Image) null);
+        tiles.setSucceeded(size != null
+                           && filterTiles(filter,
+                                          pathName,
+                                          imageEntity,
+                                          size));
+        tiles.setFilterName(filter);
+        tiles.setCycle(imageEntity.getCycle());
+        tiles.setMetrics(imageEntity.getMetrics());
+        return tiles;
+    }
+
+    /**
+     * Decode the image of the @a imageEntity, which is @a size pixels,
+     * on the calling Thread and apply the @a filter to each of its
+     * tiles and store them in the directory @a pathName in parallel.
+     * Returns true if all the tiles were stored.
+     */
+    private static boolean filterTiles(Filter filter,
+                                       String pathName,
+                                       ImageEntity imageEntity,
+                                       Dimension size) {
+        ForkJoinPool pool = ForkJoinTask.inForkJoinPool()
+            ? ForkJoinTask.getPool()
+            : ForkJoinPool.commonPool();
+        int parallelism = pool.getParallelism();
+
+        // The decoding blocks once this many tiles are waiting to be
+        // filtered.
+        BlockingQueue<ImageEntity> queue =
+            new ArrayBlockingQueue<>(parallelism);
+
+        List<CompletableFuture<Boolean>> storeTasks =
+            IntStream.range(0, parallelism)
+            .mapToObj(i -> CompletableFuture
+                      .supplyAsync(() -> storeTiles(filter,
+                                                    pathName,
+                                                    queue),
+                                   pool))
+            .collect(Collectors.toList());
+
+        boolean decoded = false;
+        try {
+            decoded = decodeTiles(imageEntity, size, queue);
+        } finally {
+            // Tell each task there are no more tiles, even if this
+            // Thread was interrupted, since the tasks would otherwise
+            // wait for tiles forever.
+            boolean interrupted = Thread.interrupted();
+            for (int i = 0; i < parallelism; ++i)
+                for (;;)
+                    try {
+                        ManagedBlocking.run(() -> queue.put(NO_MORE_TILES));
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+
+        return storeTasks.stream()
+            .map(CompletableFuture::join)
+            .reduce(decoded, Boolean::logicalAnd);
+    }
+
+    /**
+     * Decode the image of the @a imageEntity, which is @a size pixels,
+     * and put each of its tiles on the @a queue.  Returns true if the
+     * whole image was decoded.
+     */
+    private static boolean decodeTiles(ImageEntity imageEntity,
+                                       Dimension size,
+                                       BlockingQueue<ImageEntity> queue) {
+        int tileSize = Options.instance().getTileSize();
+        StageMetrics metrics = imageEntity.getMetrics();
+
+        // The time spent waiting for room in the queue isn't part of
+        // decoding a strip.
+        long[] start = { System.nanoTime() };
+        BufferedImage.StripConsumer putTiles = (strip, y) -> {
+            if (metrics != null)
+                metrics.record(StageMetrics.DECODE, start[0]);
+            putTiles(imageEntity, strip, y / tileSize, queue);
+            start[0] = System.nanoTime();
+        };
+
+        try {
+            if (BufferedImage.decodeStrips(imageEntity.getImageData(),
+                                           imageEntity.getFormatName(),
+                                           tileSize,
+                                           putTiles))
+                return true;
+
+            for (int y = 0; y < size.height; y += tileSize) {
+                BufferedImage strip =
+                    new BufferedImage(imageEntity.getImageData(),
+                                      imageEntity.getFormatName(),
+                                      new Rectangle(0,
+                                                    y,
+                                                    size.width,
+                                                    Math.min(tileSize, size.height - y)));
+                if (strip.mBufferedImage == null)
+                    return false;
+
+                try {
+                    putTiles.accept(strip.mBufferedImage, y);
+                } finally {
+                    strip.release();
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Put a copy of each tile of the @a strip, which holds the tiles
+     * in @a row of the image of the @a imageEntity, on the @a queue.
+     */
+    private static void putTiles(ImageEntity imageEntity,
+                                 java.awt.image.BufferedImage strip,
+                                 int row,
+                                 BlockingQueue<ImageEntity> queue)
+        throws MalformedURLException, InterruptedException {
+        int tileSize = Options.instance().getTileSize();
+
+        for (int column = 0, x = 0;
+             x < strip.getWidth();
+             ++column, x += tileSize) {
+            ImageEntity tile =
+                new ImageEntity(tileUrl(imageEntity.getSourceURL(),
+                                        row,
+                                        column),
+                                copyTile(strip, x, tileSize));
+            tile.setCycle(imageEntity.getCycle());
+            tile.setMetrics(imageEntity.getMetrics());
+
+            // Wait for room in the queue, i.e., for the filtering to
+            // catch up with the decoding.
+            ManagedBlocking.run(() -> queue.put(tile));
+        }
+    }
+
+    /**
+     * The loop run by each task that takes tiles from the @a queue,
+     * applies the @a filter to them, and stores them in the directory
+     * @a pathName, until it takes NO_MORE_TILES.  Returns true if all
+     * the tiles it took were stored.
+     */
+    private static boolean storeTiles(Filter filter,
+                                      String pathName,
+                                      BlockingQueue<ImageEntity> queue) {
+        boolean stored = true;
+
+        for (;;) {
+            ImageEntity tile;
+            try {
+                tile = ManagedBlocking.call(queue::take);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            if (tile == NO_MORE_TILES)
+                return stored;
+
+            // Keep taking tiles after a failure, so the decoding
+            // never waits for room in the queue forever.
+            try {
+                // The tile isn't shared, so the filter may change it
+                // in place, and otherwise it's released once it's
+                // filtered.
+                ImageEntity filteredTile = filter.filter(tile);
+                if (filteredTile.getImage() != tile.getImage())
+                    tile.releaseImage();
+
+                // The tile is stored by this task, rather than
+                // queued, so no more than one tile per task is held
+                // at once.  The store releases it.
+                stored &= WriteBehindStore.instance().write(pathName,
+                                                            filteredTile);
+            } catch (RuntimeException e) {
+                PlatformStrategy.instance().log(AsyncLog.Level.ERROR,
+                                                "TileSet",
+                                                "unable to filter "
+                                                + tile.getSourceURL()
+                                                + ": "
+                                                + e);
+                stored = false;
+            }
+        }
+    }
+
+    /**
+     * Returns the URL of the tile in @a row and @a column of the image
+     * at @a sourceUrl, whose file name is the image's with the row and
+     * column appended, e.g., "ka_2_3.png".
+     */
+    private static URL tileUrl(URL sourceUrl,
+                               int row,
+                               int column) throws MalformedURLException {
+        String path = sourceUrl.getPath();
+        String fileName = path.substring(path.lastIndexOf('/') + 1);
+        int extension = fileName.lastIndexOf('.');
+        String suffix = "_" + row + "_" + column;
+
+        return new URL(sourceUrl,
+                       extension < 0
+                       ? fileName + suffix
+                       : fileName.substring(0, extension)
+                         + suffix
+                         + fileName.substring(extension));
+    }
+
+    /**
+     * Returns an Image with a copy of the tile of the @a strip that
+     * starts at column @a x and is up to @a tileSize pixels wide,
+     * whose pixel buffer is borrowed from the PixelBufferPool if its
+     * layout is pooled.
+     */
+    private static Image copyTile(java.awt.image.BufferedImage strip,
+                                  int x,
+                                  int tileSize) {
+        int width = Math.min(tileSize, strip.getWidth() - x);
+        int height = strip.getHeight();
+        ColorModel colorModel = strip.getColorModel();
+
+        java.awt.image.BufferedImage tile =
+            PixelBufferPool.instance().borrowImage
+            (colorModel,
+             strip.getSampleModel().createCompatibleSampleModel(width, height),
+             false);
+        if (tile == null)
+            tile = new java.awt.image.BufferedImage
+                (colorModel,
+                 strip.getRaster().createCompatibleWritableRaster(width, height),
+                 colorModel.isAlphaPremultiplied(),
+                 null);
+
+        // The child Raster starts at (0, 0), so it's copied to the
+        // same place in the tile.
+        tile.getRaster().setRect(strip.getRaster().createChild(x,
+                                                               0,
+                                                               width,
+                                                               height,
+                                                               0,
+                                                               0,
+                                                               null));
+        return new BufferedImage(tile);
+    }
+
+    /**
+     * Make the constructor private for a utility class.
+     */
+    private TileSet() {
+    }
+}
@@ -0,0 +1,171 @@
+package example;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * @class UrlManifestIterator
+ *
+ * @brief An Iterator over the Lists of URLs in a separator-delimited
+ *        manifest file that reads the file lazily, one iteration
+ *        cycle at a time, rather than reading the whole file into
+ *        memory before the first cycle starts.  The URLs for the
+ *        next cycle are read and parsed by a background Thread while
+ *        the current cycle is being processed.
+ */
+class UrlManifestIterator implements Iterator<List<URL>> {
+    /**
+     * Buffered reader for the manifest file.
+     */
+    private final BufferedReader mReader;
+
+    /**
+     * A line containing only this separator divides the URLs for one
+     * cycle from the URLs for the next cycle.
+     */
+    private final String mSeparator;
+
+    /**
+     * Reads and parses the next cycle in the background.
+     */
+    private final ExecutorService mPrefetcher =
+        Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable,
+                                           "UrlManifestIterator");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * The URLs for the next cycle, which are being prefetched.  The
+     * future's value is null once the end of the file is reached.
+     */
+    private Future<List<URL>> mNextCycle;
+
+    /**
+     * Set by the background Thread once the whole file has been read.
+     */
+    private volatile boolean mEndOfFile = false;
+
+    /**
+     * Constructor opens the manifest file at @a path and starts
+     * prefetching the URLs for the first cycle.
+     */
+    public UrlManifestIterator(Path path,
+                               String separator) throws IOException {
+        mReader = Files.newBufferedReader(path,
+                                          StandardCharsets.UTF_8);
+        mSeparator = separator;
+        mNextCycle = mPrefetcher.submit(this::readCycle);
+    }
+
+    /**
+     * Returns true if the manifest has another cycle of URLs, which
+     * blocks until they have been read.
+     */
+    @Override
+    public boolean hasNext() {
+        return peekCycle() != null;
+    }
+
+    /**
+     * Returns the URLs for the next cycle and starts prefetching the
+     * cycle after it.
+     */
+    @Override
+    public List<URL> next() {
+        List<URL> urls = peekCycle();
+        if (urls == null)
+            throw new NoSuchElementException();
+
+        mNextCycle = mEndOfFile
+            ? CompletableFuture.completedFuture(null)
+            : mPrefetcher.submit(this::readCycle);
+        return urls;
+    }
+
+    /**
+     * Wait for the prefetched cycle and return it, or null if there
+     * are no more cycles in the manifest.
+     */
+    private List<URL> peekCycle() {
+        try {
+            return mNextCycle.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            PlatformStrategy.instance().errorLog("UrlManifestIterator",
+                                                 "Error reading file "
+                                                 + e.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * Read the URLs for the next cycle, which runs in the background.
+     * Empty cycles are skipped.  Releases the resources of this
+     * Iterator once the end of the file is reached, after which it
+     * returns null.
+     */
+    private List<URL> readCycle() {
+        List<URL> urls = new ArrayList<>();
+
+        try {
+            for (String line;
+                 (line = mReader.readLine()) != null;) {
+                // If the line is the dedicated delimiter then we're
+                // done with this cycle unless it's empty.
+                if (line.equalsIgnoreCase(mSeparator)) {
+                    if (!urls.isEmpty())
+                        return urls;
+                }
+                // Otherwise, add the URL to current list.
+                else
+                    try {
+                        urls.add(new URL(line));
+                    } catch (MalformedURLException e) {
+                        PlatformStrategy.instance().errorLog
+                            ("UrlManifestIterator",
+                             "Invalid URL " + line);
+                    }
+            }
+
+            // We've reached the end of the file.
+            endOfFile();
+            return urls.isEmpty() ? null : urls;
+        } catch (IOException e) {
+            endOfFile();
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Close the file and shutdown the background Thread.
+     */
+    private void endOfFile() {
+        mEndOfFile = true;
+        mPrefetcher.shutdown();
+
+        try {
+            mReader.close();
+        } catch (IOException e) {
+            // Nothing else can be read from the file anyway.
+        }
+    }
+}
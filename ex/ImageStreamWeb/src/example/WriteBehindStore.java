@@ -0,0 +1,582 @@
+package example;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @class WriteBehindStore
+ *
+ * @brief Stores filtered images in files on dedicated I/O Threads so
+ *        the Threads that filter the images don't wait on the disk.
+ *        Images are queued in a bounded queue (so a filter Thread
+ *        only blocks if the disk falls far behind) and each I/O
+ *        Thread writes a batch of the queued images at a time.  The
+ *        directories that have been created are cached and the
+ *        writes are made durable according to an FsyncPolicy.
+ *        flush() tells when all the images of one iteration cycle of
+ *        one ImageStream are written (and synced to disk), so a cycle
+ *        never waits for the images of other cycles, streams, or
+ *        servlet requests that share the I/O Threads.  If passthrough
+ *        is enabled, an image whose pixels weren't changed is stored
+ *        as the bytes it was downloaded as, so it's never decoded and
+ *        encoded.  Otherwise, unless it's encoded as a PNG or in its
+ *        source's format, the extension of its ImageEncoder is
+ *        appended to its name, e.g., "ka.png" encoded as a JPEG is
+ *        stored as "ka.png.jpg".  Images are stored in a file per
+ *        image by default, or appended to the segments of the
+ *        SegmentStore.  This class is a singleton, so the I/O Threads
+ *        are shared by all the ImageStreams in a JVM.
+ */
+public class WriteBehindStore {
+    /**
+     * When the written files are synced to disk.
+     */
+    public static enum FsyncPolicy {
+        NONE,      // Leave it to the operating system.
+        EACH_FILE, // Sync each file (and its directory) once it's written.
+        ON_FLUSH   // Sync a cycle's files when flush() is called for it.
+    }
+
+    /**
+     * The singleton @a WriteBehindStore instance.
+     */
+    private static WriteBehindStore sUniqueInstance = null;
+
+    /**
+     * The maximum number of images that can wait to be written.
+     */
+    private static final int QUEUE_CAPACITY = 64;
+
+    /**
+     * The maximum number of images an I/O Thread writes in one batch.
+     */
+    private static final int MAX_BATCH = 16;
+
+    /**
+     * How the images are laid out on disk.
+     */
+    public static enum Layout {
+        FILES,   // One file per image in a directory per filter.
+        SEGMENTS // Appended to the segments of the SegmentStore.
+    }
+
+    /**
+     * An image that's waiting to be written.
+     */
+    private static class Write {
+        final String mPathName;
+        final ImageEntity mImageEntity;
+        final CompletableFuture<Boolean> mStored =
+            new CompletableFuture<>();
+
+        /**
+         * The name the image is stored under, which is set once it's
+         * encoded, since it may end with the extension of its encoding.
+         */
+        String mFileName;
+
+        /**
+         * The file (or segment) the image was written to, once it's
+         * written.
+         */
+        volatile File mFile;
+
+        Write(String pathName,
+              ImageEntity imageEntity) {
+            mPathName = pathName;
+            mImageEntity = imageEntity;
+        }
+    }
+
+    /**
+     * Identifies the images of one iteration cycle of one
+     * ImageStream, which is told apart by its StageMetrics.
+     */
+    private static final class CycleKey {
+        final StageMetrics mMetrics;
+        final long mCycle;
+
+        CycleKey(StageMetrics metrics,
+                 long cycle) {
+            mMetrics = metrics;
+            mCycle = cycle;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof CycleKey
+                && ((CycleKey) other).mMetrics == mMetrics
+                && ((CycleKey) other).mCycle == mCycle;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(mMetrics) * 31
+                + Long.hashCode(mCycle);
+        }
+    }
+
+    /**
+     * A buffer that an image is encoded into before it's stored,
+     * which exposes its contents without copying them.
+     */
+    private static class EncodeBuffer extends ByteArrayOutputStream {
+        EncodeBuffer() {
+            super(64 * 1024);
+        }
+
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    /**
+     * Each Thread's EncodeBuffer, which is reused for each image.
+     */
+    private final ThreadLocal<EncodeBuffer> mEncodeBuffer =
+        ThreadLocal.withInitial(EncodeBuffer::new);
+
+    /**
+     * The images that are waiting to be written.
+     */
+    private final BlockingQueue<Write> mQueue =
+        new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+    /**
+     * The images stored for each iteration cycle of each ImageStream
+     * that haven't been flushed yet, written or not.  Images of an
+     * ImageEntity without StageMetrics aren't tracked, since no
+     * ImageStream flushes them.
+     */
+    private final Map<CycleKey, Set<Write>> mUnflushed =
+        new ConcurrentHashMap<>();
+
+    /**
+     * The number of I/O Threads, or 0 if images are written on the
+     * calling Thread.
+     */
+    private final int mThreads;
+
+    /**
+     * When the written files are synced to disk.
+     */
+    private final FsyncPolicy mFsyncPolicy;
+
+    /**
+     * True if images whose pixels weren't changed are stored as the
+     * bytes they were downloaded as.
+     */
+    private final boolean mPassthrough;
+
+    /**
+     * How the images are laid out on disk.
+     */
+    private final Layout mLayout;
+
+    /**
+     * The directories that are known to exist.
+     */
+    private final Set<File> mDirectories =
+        ConcurrentHashMap.newKeySet();
+
+    /**
+     * Method to return the one and only singleton instance.
+     */
+    public static synchronized WriteBehindStore instance() {
+        if (sUniqueInstance == null)
+            sUniqueInstance =
+                new WriteBehindStore(Options.instance().getStoreThreads(),
+                                     Options.instance().getFsyncPolicy(),
+                                     Options.instance().passthroughEnabled(),
+                                     Options.instance().getStoreLayout());
+
+        return sUniqueInstance;
+    }
+
+    /**
+     * Constructor starts @a threads I/O Threads that write the queued
+     * images and sync them according to the @a fsyncPolicy.  If @a
+     * passthrough is true, images whose pixels weren't changed are
+     * stored as the bytes they were downloaded as.  The images are
+     * laid out on disk according to the @a layout.
+     */
+    private WriteBehindStore(int threads,
+                             FsyncPolicy fsyncPolicy,
+                             boolean passthrough,
+                             Layout layout) {
+        mThreads = threads;
+        mFsyncPolicy = fsyncPolicy;
+        mPassthrough = passthrough;
+        mLayout = layout;
+
+        for (int i = 1; i <= threads; ++i) {
+            Thread thread = new Thread(this::writeBatches,
+                                       "WriteBehindStore-" + i);
+            // Don't keep the JVM alive just for these Threads.
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Queue the image of the @a imageEntity to be stored in its file
+     * in the directory @a pathName.  The store takes over the
+     * imageEntity's reference to its image and releases it once the
+     * image is stored.  Returns a CompletableFuture that completes
+     * with true once the image is stored, else false.
+     */
+    public CompletableFuture<Boolean> store(String pathName,
+                                            ImageEntity imageEntity) {
+        Write write = newWrite(pathName, imageEntity);
+
+        // Both storing the image and waiting for room in the queue may
+        // block, e.g., on a parallel stream's ForkJoinPool worker.
+        if (mThreads == 0)
+            ManagedBlocking.run(() -> writeNow(write));
+        else {
+            try {
+                ManagedBlocking.run(() -> mQueue.put(write));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                complete(write, false);
+            }
+        }
+
+        return write.mStored;
+    }
+
+    /**
+     * Store the image of the @a imageEntity in its file in the
+     * directory @a pathName on the calling Thread, e.g., on a Thread
+     * that's dedicated to I/O already.  The imageEntity's reference
+     * to its image is released once it's stored.  Returns true if the
+     * image was stored, else false.  The write may block on the disk,
+     * so it's run as a ForkJoinPool.ManagedBlocker, e.g., on the
+     * ForkJoinPool workers that store the tiles of a TileSet.
+     */
+    public boolean write(String pathName,
+                         ImageEntity imageEntity) {
+        Write write = newWrite(pathName, imageEntity);
+        ManagedBlocking.run(() -> writeNow(write));
+        return write.mStored.join();
+    }
+
+    /**
+     * Write the @a write on the calling Thread.  It's failed if the
+     * write throws, so its CompletableFuture always completes and its
+     * image is always released.
+     */
+    private void writeNow(Write write) {
+        try {
+            write(Collections.singletonList(write));
+        } catch (RuntimeException e) {
+            PlatformStrategy.instance().log(AsyncLog.Level.ERROR,
+                                            "WriteBehindStore",
+                                            "write failed: " + e);
+            complete(write, false);
+        }
+    }
+
+    /**
+     * Returns a new Write of the image of the @a imageEntity to the
+     * directory @a pathName, which is tracked until its iteration
+     * cycle is flushed.
+     */
+    private Write newWrite(String pathName,
+                           ImageEntity imageEntity) {
+        Write write = new Write(pathName, imageEntity);
+
+        if (imageEntity.getMetrics() != null)
+            mUnflushed.computeIfAbsent(new CycleKey(imageEntity.getMetrics(),
+                                                    imageEntity.getCycle()),
+                                       key -> ConcurrentHashMap.newKeySet())
+                .add(write);
+        return write;
+    }
+
+    /**
+     * Returns a CompletableFuture that completes once all the images
+     * stored for iteration @a cycle of the ImageStream with the @a
+     * metrics have been written and, if the FsyncPolicy calls for
+     * it, synced to disk.  It must be called once the cycle has
+     * stored all its images, and only once per cycle.
+     */
+    public CompletableFuture<Void> flush(StageMetrics metrics,
+                                         long cycle) {
+        Set<Write> writes = mUnflushed.remove(new CycleKey(metrics, cycle));
+        if (writes == null)
+            return CompletableFuture.completedFuture(null);
+
+        CompletableFuture<?>[] stored = writes.stream()
+            .map(write -> write.mStored)
+            .toArray(CompletableFuture[]::new);
+
+        return CompletableFuture
+            .allOf(stored)
+            // This runs on the I/O Thread that completes the last
+            // write, or on the caller if they're all done already.
+            .thenRun(() -> {
+                    if (mFsyncPolicy == FsyncPolicy.ON_FLUSH)
+                        sync(writes);
+                });
+    }
+
+    /**
+     * The loop run by each I/O Thread, which writes batches of images
+     * from the queue.
+     */
+    private void writeBatches() {
+        List<Write> batch = new ArrayList<>(MAX_BATCH);
+
+        for (;;) {
+            try {
+                // Wait for an image and then take any others that are
+                // already queued, up to the size of a batch.
+                batch.add(mQueue.take());
+                mQueue.drainTo(batch, MAX_BATCH - 1);
+
+                write(batch);
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                // Don't let the batch stop this Thread.  Each image
+                // is completed by write() already, so this only fails
+                // the ones it didn't get to.
+                PlatformStrategy.instance().log(AsyncLog.Level.ERROR,
+                                                "WriteBehindStore",
+                                                "write failed: " + e);
+                for (Write write : batch)
+                    complete(write, false);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Write the @a batch of images to their files or segments.  Each
+     * file (or segment) and directory is synced just once for the
+     * whole batch.  An image that can't be encoded or stored (e.g.,
+     * one whose download failed) only fails its own write.
+     */
+    private void write(List<Write> batch) {
+        Set<File> files = new LinkedHashSet<>();
+        Set<File> directories = new LinkedHashSet<>();
+        List<Write> written = new ArrayList<>(batch.size());
+
+        for (Write write : batch) {
+            StageMetrics metrics = write.mImageEntity.getMetrics();
+            File file;
+            try {
+                long start = System.nanoTime();
+                ByteBuffer image = encode(write);
+                if (metrics != null) {
+                    metrics.record(StageMetrics.ENCODE, start);
+                    metrics.addImageStored(write.mImageEntity.getCycle(),
+                                           image.remaining());
+                }
+
+                start = System.nanoTime();
+                file = mLayout == Layout.SEGMENTS
+                    ? SegmentStore.instance().append(write.mPathName,
+                                                     write.mFileName,
+                                                     image)
+                    : writeToFile(write, image);
+                if (metrics != null)
+                    metrics.record(StageMetrics.STORE, start);
+            } catch (IOException | RuntimeException e) {
+                PlatformStrategy.instance().log(AsyncLog.Level.ERROR,
+                                                "WriteBehindStore",
+                                                "unable to store "
+                                                + write.mPathName
+                                                + write.mImageEntity.getFileName()
+                                                + ": "
+                                                + e);
+                complete(write, false);
+                continue;
+            }
+
+            write.mFile = file;
+            files.add(file);
+            directories.add(file.getParentFile());
+            written.add(write);
+        }
+
+        if (mFsyncPolicy == FsyncPolicy.EACH_FILE) {
+            long start = System.nanoTime();
+
+            // A write isn't complete until its directory entry is
+            // synced too.
+            files.forEach(this::sync);
+            directories.forEach(this::sync);
+
+            // The batch's sync is charged to each image in it.
+            for (Write write : written)
+                if (write.mImageEntity.getMetrics() != null)
+                    write.mImageEntity.getMetrics().record(StageMetrics.SYNC,
+                                                           start);
+        }
+
+        for (Write write : written)
+            complete(write, true);
+    }
+
+    /**
+     * Write the encoded @a image of the @a write to its own file and
+     * return the file.
+     */
+    private File writeToFile(Write write,
+                             ByteBuffer image) throws IOException {
+        File directory = directory(write.mPathName);
+        File imageFile = new File(directory,
+                                  write.mFileName);
+
+        FileChannel channel;
+        try {
+            channel = open(imageFile);
+        } catch (NoSuchFileException e) {
+            // The directory was deleted after it was cached, e.g., when
+            // the servlet cleaned the output directory, so create it
+            // again and retry once.
+            mDirectories.remove(directory);
+            directory(write.mPathName);
+            channel = open(imageFile);
+        }
+
+        try (FileChannel imageChannel = channel) {
+            while (image.hasRemaining())
+                imageChannel.write(image);
+        }
+        return imageFile;
+    }
+
+    /**
+     * Returns a FileChannel that writes the @a imageFile from its
+     * start, creating it if need be.
+     */
+    private static FileChannel open(File imageFile) throws IOException {
+        return FileChannel.open(imageFile.toPath(),
+                                StandardOpenOption.CREATE,
+                                StandardOpenOption.WRITE,
+                                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Returns the image of the @a write encoded in the calling
+     * Thread's buffer, or its downloaded bytes if they can be stored
+     * as they are, and sets the name it's stored under to match.
+     */
+    private ByteBuffer encode(Write write) throws IOException {
+        // The downloaded bytes, if they can be stored as they are.
+        byte[] imageData = mPassthrough
+            ? write.mImageEntity.getImageData()
+            : null;
+
+        if (imageData != null) {
+            write.mFileName = write.mImageEntity.getFileName();
+            return ByteBuffer.wrap(imageData);
+        }
+
+        // Images encoded as PNGs (the default) or in the format of
+        // their source keep the source name.  Otherwise, e.g., "ka.png"
+        // is stored as "ka.png.jpg" if it's encoded as a JPEG.
+        ImageEncoder.Format format = Options.instance().getImageEncoderFormat();
+        write.mFileName = format == ImageEncoder.Format.PNG
+            || format == ImageEncoder.Format.SOURCE
+            ? write.mImageEntity.getFileName()
+            : write.mImageEntity.getFileName
+              (PlatformStrategy.instance()
+               .getImageEncoder(write.mImageEntity.getFormatName())
+               .getExtension());
+
+        EncodeBuffer buffer = mEncodeBuffer.get();
+        buffer.reset();
+        PlatformStrategy.instance().storeImage(write.mImageEntity.getImage(),
+                                               write.mImageEntity.getFormatName(),
+                                               buffer);
+        return buffer.toByteBuffer();
+    }
+
+    /**
+     * Complete the @a write with the result @a stored, unless it's
+     * completed already.  The pixels aren't needed any more, so the
+     * reference to them is released, but only by the call that
+     * completes the write, so it's never released twice.
+     */
+    private void complete(Write write,
+                          boolean stored) {
+        if (write.mStored.complete(stored))
+            write.mImageEntity.releaseImage();
+    }
+
+    /**
+     * Sync the files (and directories) the @a writes were written to,
+     * each of them just once.
+     */
+    private void sync(Set<Write> writes) {
+        Set<File> files = new LinkedHashSet<>();
+        Set<File> directories = new LinkedHashSet<>();
+        for (Write write : writes)
+            if (write.mFile != null) {
+                files.add(write.mFile);
+                directories.add(write.mFile.getParentFile());
+            }
+
+        files.forEach(this::sync);
+        directories.forEach(this::sync);
+    }
+
+    /**
+     * Returns the directory for @a pathName, creating it if it's not
+     * known to exist.  A directory that's deleted after it's cached
+     * is created again by writeToFile().
+     */
+    private File directory(String pathName) {
+        File directory =
+            new File(PlatformStrategy.instance().getDirectoryPath(),
+                     pathName);
+
+        if (!mDirectories.contains(directory)) {
+            directory.mkdirs();
+            mDirectories.add(directory);
+        }
+        return directory;
+    }
+
+    /**
+     * Sync the contents of the @a file (or directory) to disk.
+     */
+    private void sync(File file) {
+        try (FileChannel channel =
+             FileChannel.open(file.toPath(),
+                              file.isDirectory()
+                              ? StandardOpenOption.READ
+                              : StandardOpenOption.WRITE)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Some platforms can't sync directories.
+            if (!file.isDirectory())
+                PlatformStrategy.instance().log(AsyncLog.Level.WARN,
+                                                "WriteBehindStore",
+                                                "unable to sync "
+                                                + file
+                                                + ": "
+                                                + e);
+        }
+    }
+}
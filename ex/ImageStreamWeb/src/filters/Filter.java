@@ -52,12 +52,15 @@ public abstract class Filter {
      * This template method calls the applyFilter() hook method (which
      * must be defined by a subclass) to filter the @a imageEntity
      * parameter and sets the filterName of the result to the name of
-     * the filter.
+     * the filter.  The result stays tagged with the iteration cycle
+     * and StageMetrics of the @a imageEntity.
      */
     public ImageEntity filter(ImageEntity imageEntity) {
         // Call the applyFilter() hook method.
         ImageEntity filteredResult = applyFilter(imageEntity);
         filteredResult.setFilterName(this);
+        filteredResult.setCycle(imageEntity.getCycle());
+        filteredResult.setMetrics(imageEntity.getMetrics());
         return filteredResult;
     }
 
@@ -0,0 +1,73 @@
+package filters;
+
+import example.ImageEntity;
+import example.PlatformStrategy;
+
+/**
+ * @class FusedFilter
+ *
+ * @brief A Filter subclass that composes several point-wise
+ *        PixelKernels and applies them to an image in a single pass,
+ *        making one copy of the image rather than one per kernel.
+ *        The result is the same as chaining a Filter for each of the
+ *        kernels (except that images whose layout can't hold every
+ *        intermediate color, e.g., palettes, aren't rounded between
+ *        kernels), but it only traverses the image's memory once,
+ *        which matters for large images.
+ */
+public class FusedFilter extends Filter {
+    /**
+     * The composition of all the kernels.
+     */
+    private final PixelKernel mKernel;
+
+    /**
+     * Constructs a FusedFilter with the default name that applies
+     * the @a kernels in order.
+     */
+    public FusedFilter(PixelKernel... kernels) {
+        mKernel = compose(kernels);
+    }
+
+    /**
+     * Constructs a FusedFilter with the given @a name that applies
+     * the @a kernels in order.  See GrayScaleFilter for explanation
+     * of filter naming.
+     */
+    public FusedFilter(String name,
+                       PixelKernel... kernels) {
+        super(name);
+        mKernel = compose(kernels);
+    }
+
+    /**
+     * Returns the composition of all the kernels.
+     */
+    public PixelKernel getKernel() {
+        return mKernel;
+    }
+
+    /**
+     * Applies the composed kernels to each pixel of the image.
+     */
+    @Override
+    protected ImageEntity applyFilter(ImageEntity imageEntity) {
+        // Forward to the platform-specific implementation of this
+        // filter.
+        return PlatformStrategy.instance().applyPixelKernel(imageEntity,
+                                                            mKernel);
+    }
+
+    /**
+     * Returns a kernel that applies the @a kernels in order.
+     */
+    private static PixelKernel compose(PixelKernel... kernels) {
+        if (kernels.length == 0)
+            return PixelKernel.identity();
+
+        PixelKernel kernel = kernels[0];
+        for (int i = 1; i < kernels.length; ++i)
+            kernel = kernel.andThen(kernels[i]);
+        return kernel;
+    }
+}
@@ -0,0 +1,54 @@
+package filters;
+
+/**
+ * @class GrayScaleKernel
+ *
+ * @brief A PixelKernel that converts a pixel to grayscale using the
+ *        common color transformation values for grayscale conversion
+ *        (see en.wikipedia.org/wiki/Grayscale).  Transparent pixels
+ *        are left untouched and all other pixels become opaque.
+ */
+public final class GrayScaleKernel implements PixelKernel {
+    /**
+     * The luma weights (i.e., 0.299, 0.587, and 0.114) in 16.16 fixed
+     * point.  They're rounded up so that (c * WEIGHT) >>> 16
+     * truncates to exactly the same value as (int) (c * 0.299), etc.,
+     * for every 8-bit c, which keeps the output bit-identical to the
+     * floating-point version.
+     */
+    public static final int RED_WEIGHT = 19596;
+    public static final int GREEN_WEIGHT = 38470;
+    public static final int BLUE_WEIGHT = 7472;
+
+    /**
+     * Returns the opaque ARGB gray pixel for the given @a red, @a
+     * green, and @a blue components.
+     */
+    public static int grayScale(int red, int green, int blue) {
+        int gray = ((red * RED_WEIGHT) >>> 16)
+            + ((green * GREEN_WEIGHT) >>> 16)
+            + ((blue * BLUE_WEIGHT) >>> 16);
+        return 0xFF000000 | (gray << 16) | (gray << 8) | gray;
+    }
+
+    /**
+     * Returns the opaque ARGB gray pixel for the given @a argb pixel,
+     * ignoring its alpha.
+     */
+    public static int grayScale(int argb) {
+        return grayScale((argb >> 16) & 0xFF,
+                         (argb >> 8) & 0xFF,
+                         argb & 0xFF);
+    }
+
+    /**
+     * Returns the grayscale version of the @a argb pixel, or the
+     * pixel itself if it's transparent.
+     */
+    @Override
+    public int apply(int argb) {
+        return (argb >>> 24) == 0
+            ? argb
+            : grayScale(argb);
+    }
+}
@@ -2,6 +2,8 @@ package filters;
 
 import example.ImageEntity;
 import example.PlatformStrategy;
+import example.StageMetrics;
+import example.TileSet;
 
 /**
  * @class OutputFilterDecorator
@@ -19,11 +21,61 @@ public class OutputFilterDecorator extends FilterDecorator {
     	super(filter);
     }
 
+    /**
+     * This hook method filters the @a imageEntity and queues the
+     * result to be stored.  The input image's pixels aren't needed
+     * after filtering, so the reference to them is released and
+     * their pixel buffer can be recycled.  The filtered image is
+     * released by the store once it's been stored (see decorate()).
+     */
+    @Override
+    protected ImageEntity applyFilter(ImageEntity imageEntity) {
+        long start = System.nanoTime();
+
+        // An image that's too big to decode whole is filtered and
+        // stored one tile at a time instead.
+        if (imageEntity.isTiled()) {
+            ImageEntity storedTiles = TileSet.filter(mFilter,
+                                                     getName(),
+                                                     imageEntity);
+            recordFilterStage(imageEntity, start);
+            imageEntity.releaseImage();
+            return storedTiles;
+        }
+
+        ImageEntity filteredImage = mFilter.filter(imageEntity);
+
+        // The time includes decoding the image if this filter is the
+        // first to need its pixels, which is also recorded as its own
+        // stage.
+        recordFilterStage(imageEntity, start);
+
+        // A filter such as NullFilter returns its input, which isn't
+        // decoded unless it's needed.
+        if (filteredImage != imageEntity
+            && filteredImage.getImage() != imageEntity.getImage())
+            imageEntity.releaseImage();
+
+        return decorate(filteredImage);
+    }
+
+    /**
+     * Record the time since @a start in the stage of this filter in
+     * the StageMetrics of the @a imageEntity, if it has any.
+     */
+    private void recordFilterStage(ImageEntity imageEntity,
+                                   long start) {
+        StageMetrics metrics = imageEntity.getMetrics();
+        if (metrics != null)
+            metrics.record(StageMetrics.filterStage(getName()), start);
+    }
+
     /**
      * The hook method that is called on the ImageEntity once it has
-     * been filtered with mFilter.  This method stores the filtered
-     * ImageEntity in a file by delegating the storing to the
-     * platform- specific implementation of storeImage(...).
+     * been filtered with mFilter.  This method queues the filtered
+     * ImageEntity to be stored in a file in the background by the
+     * platform-specific implementation of storeImage(...), so the
+     * calling Thread doesn't wait for the disk.
      */
     @Override
     protected ImageEntity decorate(ImageEntity imageEntity) {
@@ -31,10 +83,10 @@ public class OutputFilterDecorator extends FilterDecorator {
         // from its URL), within the appropriate filter directory to
         // organize the filtered results and write the image to 
     	// the file in the appropriate directory.
+        // The image is released once it's stored.
         PlatformStrategy.instance()
-        	.storeExternalImage(this.getName(),
-        						imageEntity.getFileName(), 
-        						imageEntity.getImage());
+            .storeExternalImageAsync(this.getName(),
+                                     imageEntity);
 
         return imageEntity;
     }
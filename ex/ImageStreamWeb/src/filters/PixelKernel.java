@@ -0,0 +1,35 @@
+package filters;
+
+/**
+ * @interface PixelKernel
+ *
+ * @brief A point-wise pixel operation, i.e., one whose output pixel
+ *        depends only on the corresponding input pixel.  Kernels are
+ *        composed with andThen() so that a FusedFilter can apply a
+ *        chain of them in a single pass over an image.  A kernel is
+ *        applied to many pixels in parallel, so it must be stateless.
+ */
+@FunctionalInterface
+public interface PixelKernel {
+    /**
+     * Returns the result of applying this kernel to the non-premultiplied
+     * @a argb pixel.  Pixels of images without an alpha channel are
+     * passed in as opaque and the alpha of the result is ignored.
+     */
+    int apply(int argb);
+
+    /**
+     * Returns a kernel that applies this kernel and then the @a after
+     * kernel to each pixel.
+     */
+    default PixelKernel andThen(PixelKernel after) {
+        return argb -> after.apply(apply(argb));
+    }
+
+    /**
+     * Returns a kernel that leaves each pixel unchanged.
+     */
+    static PixelKernel identity() {
+        return argb -> argb;
+    }
+}
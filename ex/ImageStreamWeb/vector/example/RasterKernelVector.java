@@ -0,0 +1,97 @@
+package example;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import filters.GrayScaleKernel;
+
+/**
+ * @class RasterKernelVector
+ *
+ * @brief Converts runs of packed (A)RGB int pixels to grayscale with
+ *        SIMD instructions via the Vector API, so several pixels are
+ *        converted per instruction (e.g., 8 with AVX2).  It computes
+ *        exactly the same fixed-point luma as GrayScaleKernel and
+ *        keeps transparent pixels by blending the results through a
+ *        vector mask.  This class needs JDK 16 or later and is
+ *        compiled and run with "--add-modules jdk.incubator.vector",
+ *        e.g.:
+ *
+ *        javac --add-modules jdk.incubator.vector -cp build/classes \
+ *              -d build/classes vector/example/RasterKernelVector.java
+ *
+ *        RasterKernel loads it reflectively and falls back to its
+ *        scalar code if it (or the module) isn't available.
+ */
+final class RasterKernelVector implements RasterKernel.GrayScaleRun {
+    /**
+     * The widest vector shape the CPU supports.
+     */
+    private static final VectorSpecies<Integer> SPECIES =
+        IntVector.SPECIES_PREFERRED;
+
+    /**
+     * Convert @a length pixels of @a source starting at index @a
+     * sourceFrom to grayscale and store them in @a destination
+     * starting at index @a destinationFrom, copying transparent
+     * pixels unchanged if @a hasAlpha.
+     */
+    @Override
+    public void grayScale(int[] source,
+                          int sourceFrom,
+                          int[] destination,
+                          int destinationFrom,
+                          int length,
+                          boolean hasAlpha) {
+        // An image without alpha keeps its top byte clear.
+        int alpha = hasAlpha ? 0xFF000000 : 0;
+        int i = 0;
+
+        for (int upper = SPECIES.loopBound(length);
+             i < upper;
+             i += SPECIES.length()) {
+            IntVector argb =
+                IntVector.fromArray(SPECIES, source, sourceFrom + i);
+
+            IntVector red = argb
+                .lanewise(VectorOperators.LSHR, 16).and(0xFF)
+                .mul(GrayScaleKernel.RED_WEIGHT)
+                .lanewise(VectorOperators.LSHR, 16);
+            IntVector green = argb
+                .lanewise(VectorOperators.LSHR, 8).and(0xFF)
+                .mul(GrayScaleKernel.GREEN_WEIGHT)
+                .lanewise(VectorOperators.LSHR, 16);
+            IntVector blue = argb
+                .and(0xFF)
+                .mul(GrayScaleKernel.BLUE_WEIGHT)
+                .lanewise(VectorOperators.LSHR, 16);
+            IntVector gray = red.add(green).add(blue);
+
+            IntVector result = gray
+                .lanewise(VectorOperators.LSHL, 16)
+                .or(gray.lanewise(VectorOperators.LSHL, 8))
+                .or(gray)
+                .or(alpha);
+
+            if (hasAlpha) {
+                // Keep the original pixels that are transparent.
+                VectorMask<Integer> visible = argb
+                    .lanewise(VectorOperators.LSHR, 24)
+                    .compare(VectorOperators.NE, 0);
+                result = argb.blend(result, visible);
+            }
+
+            result.intoArray(destination, destinationFrom + i);
+        }
+
+        // Convert the pixels left over at the end one at a time.
+        RasterKernel.SCALAR_GRAY_SCALE_RUN.grayScale(source,
+                                                     sourceFrom + i,
+                                                     destination,
+                                                     destinationFrom + i,
+                                                     length - i,
+                                                     hasAlpha);
+    }
+}